@@ -0,0 +1,254 @@
+package connectfour;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A client connection for the thread per session mode of the
+ * {@link ConnectFourServer}.<br>
+ * Each connection has its own thread, a virtual thread where the Java
+ * runtime has them, which runs the same blocking read loop as the original
+ * server: read a message, play it, read the next. The session's work runs on
+ * whichever of its connection threads gets to it first.<br>
+ * A flush starts a second thread that writes everything sent before it to
+ * the client in one go, so sending a message only queues it and a client
+ * that stops reading never holds up its game. The writer ends once the queue
+ * is empty, so an idle client has just its read thread.<br>
+ * Closing the connection lets the writer send what is queued, such as the
+ * last move of a game, but the socket is closed after
+ * {@link #DRAIN_MILLIS} even if a client that stopped reading has left the
+ * writer stuck.
+ */
+class BlockingConnection implements Connection, Runnable {
+    // how long a closed connection has to write what is queued
+    static final long DRAIN_MILLIS = 2000;
+    private final Socket socket;
+    private final ConnectFourServer server;
+    private final Protocol protocol;
+    private final InputStream inStream;
+    private final OutputStream outStream;
+    private final Executor threads;
+    // messages waiting for the writer thread and their size, guarded by this
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private int backlog;
+    // how many of the pending messages have been flushed, and whether a
+    // writer thread is running
+    private int ready;
+    private boolean writing;
+    private volatile GameSession session;
+    // written while holding this
+    private volatile boolean closed;
+    /**
+     * Constructor for a connection.
+     * @param socket the accepted socket
+     * @param server the server the client connected to
+     * @param protocol the protocol the client speaks
+     * @param threads the executor to start writer threads on
+     * @throws IOException if the socket's streams can't be opened
+     */
+    BlockingConnection(Socket socket, ConnectFourServer server, Protocol protocol,
+            Executor threads) throws IOException {
+        this.socket = socket;
+        this.server = server;
+        this.protocol = protocol;
+        this.threads = threads;
+        this.inStream = new BufferedInputStream(socket.getInputStream());
+        // the buffer only writes to the socket when it is flushed or full
+        this.outStream = new BufferedOutputStream(new FilterOutputStream(socket.getOutputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                server.wrote();
+                out.write(b, off, len);
+            }
+        });
+    }
+    @Override
+    public Protocol getProtocol() {
+        return protocol;
+    }
+    @Override
+    public GameSession getSession() {
+        return session;
+    }
+    @Override
+    public void setSession(GameSession session) {
+        this.session = session;
+    }
+    /**
+     * Find the client a game and pass each message it sends to the game,
+     * until it disconnects.
+     */
+    @Override
+    public void run() {
+        try {
+            server.connected(this);
+            if (protocol == Protocol.BINARY) {
+                readFrames();
+            } else {
+                readLines();
+            }
+        } catch (IOException e) {
+            // the client has gone, same as the end of the stream
+        } finally {
+            close();
+        }
+    }
+    /**
+     * Private helper to read lines of text until the client disconnects.
+     * @throws IOException if the socket can't be read
+     */
+    private void readLines() throws IOException {
+        BufferedReader lines = new BufferedReader(new InputStreamReader(inStream,
+                StandardCharsets.US_ASCII));
+        String line;
+        while ((line = lines.readLine()) != null) {
+            server.received(this, line);
+        }
+    }
+    /**
+     * Private helper to read frames until the client disconnects. Each
+     * frame is read into the same buffer and decoded into the same Frame.
+     * @throws IOException if the socket can't be read or the client sent
+     * something that is not a frame
+     */
+    private void readFrames() throws IOException {
+        DataInputStream frames = new DataInputStream(inStream);
+        ByteBuffer buffer = ByteBuffer.allocate(Frame.MAX_LENGTH);
+        Frame frame = new Frame();
+        int length;
+        while ((length = frames.read()) >= 0) {
+            buffer.clear();
+            buffer.put((byte) length);
+            frames.readFully(buffer.array(), 1, length);
+            buffer.position(0).limit(1 + length);
+            frame.read(buffer);
+            server.received(this, frame);
+        }
+    }
+    @Override
+    public void send(byte[] message) {
+        synchronized (this) {
+            if (closed) return;
+            pending.add(message);
+            backlog += message.length;
+        }
+        server.sent();
+    }
+    @Override
+    public void flush() {
+        synchronized (this) {
+            if (ready == pending.size()) return;
+            ready = pending.size();
+            // a running writer carries on with the new messages
+            if (writing) return;
+            writing = true;
+        }
+        startWriter();
+    }
+    @Override
+    public synchronized int getBacklog() {
+        return backlog;
+    }
+    /**
+     * Private helper to start a writer thread, which the caller has marked
+     * as running.
+     */
+    private void startWriter() {
+        try {
+            threads.execute(this::write);
+        } catch (RejectedExecutionException e) {
+            // the server is stopping, so the queue is never written
+            synchronized (this) {
+                writing = false;
+            }
+            closeSocket();
+        }
+    }
+    /**
+     * Private helper run by the writer thread, which writes the messages
+     * flushed so far into the buffer and then writes the buffer to the
+     * socket, until there are none left. If the connection has been closed
+     * it then closes the socket.
+     */
+    private void write() {
+        boolean done;
+        try {
+            while (true) {
+                byte[] message;
+                boolean last;
+                synchronized (this) {
+                    if (ready == 0) {
+                        writing = false;
+                        done = closed;
+                        break;
+                    }
+                    message = pending.poll();
+                    last = --ready == 0;
+                }
+                outStream.write(message);
+                if (last) outStream.flush();
+                synchronized (this) {
+                    backlog -= message.length;
+                }
+            }
+        } catch (IOException e) {
+            // the read loop sees the closed socket and cleans up
+            synchronized (this) {
+                writing = false;
+            }
+            done = true;
+        }
+        if (done) closeSocket();
+    }
+    @Override
+    public void close() {
+        boolean start;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            // a writer closes the socket once the queue is written
+            ready = pending.size();
+            start = !writing && ready > 0;
+            if (start) writing = true;
+        }
+        if (start) startWriter();
+        boolean draining;
+        synchronized (this) {
+            draining = writing;
+        }
+        if (draining) {
+            // in case the client has stopped reading and the writer is stuck
+            server.later(this::closeSocket, DRAIN_MILLIS);
+        } else {
+            closeSocket();
+        }
+        server.disconnected(this);
+    }
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+    /**
+     * Private helper to close the socket, which also wakes the read loop.
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing more can be done with it
+        }
+    }
+}
@@ -1,82 +1,132 @@
 package connectfour;
 
-import static org.fusesource.jansi.Ansi.*;
-import static org.fusesource.jansi.Ansi.Color.*;
-import org.fusesource.jansi.AnsiConsole;
+import java.util.Arrays;
 
 /**
  * This class allows the playing of a virtual game of "Connect Four"
- * This updated version adds colour to the output.
- * Note that this version uses the jansi library which should work by default 
- * on Linux but on windows requires "jansi.dll" to be found in an appropriate 
- * environment path. (Untested on Apple OSX)
+ * The game itself does no input or output and does not allocate anything
+ * per move, so it can be used for simulations or on a server. Anything that
+ * wants to display the game subscribes a {@link GameListener}, such as the
+ * {@link ConsoleRenderer} which adds colour to the output.
  * @author Stephen Whitely P308730
- * @version 2
+ * @version 3
  */
 public class ConnectFour {
-    private int[][] board;
+    /** Move rejected because it is the other player's turn. */
+    public static final int NOT_YOUR_TURN = 1;
+    /** Move rejected because the column is not on the board. */
+    public static final int INVALID_COLUMN = 2;
+    /** Move rejected because the column has no space left. */
+    public static final int COLUMN_FULL = 3;
+    // bitboard holding both players' tokens
+    private final Position board;
     private int turn;
-    private int width = 7, height = 6;
+    private final int width, height;
     private boolean gameOver;
-    // boolean to check if jansi.dll can be loaded
-    private static Boolean jansiOkay;
-    // colours
-    private static Color boardColour = YELLOW;
-    private static Color numberColour = GREEN;
-    private static Color playerOneColour = RED;
-    private static Color playerTwoColour = CYAN;
-    private static Color defaultColour = WHITE;
+    // result of the game, same values as checkWinner
+    private int winner;
+    // subscribers to the game events, copied on write so that firing an 
+    // event never allocates
+    private GameListener[] listeners = new GameListener[0];
     /**
      * Constructor to create a new instance of a game.<br>
-     * This default constructor will randomly select the first player.
+     * This default constructor will randomly select the first player and
+     * print the game to the console.
      */
     public ConnectFour() {
-        board = new int[width][height];
-        testJansi();
-        startNewGame();
+        this(new ConsoleRenderer());
     }
     /**
      * Constructor to create a new instance of a game.<br>
-     * This constructor allows you to select the first player.
+     * This constructor allows you to select the first player. The game is 
+     * printed to the console.
      * @param firstTurn 0 or 1 - which player goes first.
      */
     public ConnectFour(int firstTurn) {
-        board = new int[width][height];
-        testJansi();
+        this(firstTurn, new ConsoleRenderer());
+    }
+    /**
+     * Constructor to create a new instance of a game with a randomly selected
+     * first player.
+     * @param listener listener for the game events, or null for a headless
+     * game
+     */
+    public ConnectFour(GameListener listener) {
+        this(Geometry.STANDARD, listener);
+    }
+    /**
+     * Constructor to create a new instance of a game with a selected first 
+     * player.
+     * @param firstTurn 0 or 1 - which player goes first.
+     * @param listener listener for the game events, or null for a headless
+     * game
+     */
+    public ConnectFour(int firstTurn, GameListener listener) {
+        this(Geometry.STANDARD, firstTurn, listener);
+    }
+    /**
+     * Constructor to create a new instance of a game on any size of board
+     * with a randomly selected first player.
+     * @param geometry the size of the board and the number in a row to win
+     * @param listener listener for the game events, or null for a headless
+     * game
+     */
+    public ConnectFour(Geometry geometry, GameListener listener) {
+        board = new Position(geometry);
+        width = geometry.getWidth();
+        height = geometry.getHeight();
+        if (listener != null) addGameListener(listener);
+        startNewGame();
+    }
+    /**
+     * Constructor to create a new instance of a game on any size of board
+     * with a selected first player.
+     * @param geometry the size of the board and the number in a row to win
+     * @param firstTurn 0 or 1 - which player goes first.
+     * @param listener listener for the game events, or null for a headless
+     * game
+     */
+    public ConnectFour(Geometry geometry, int firstTurn, GameListener listener) {
+        board = new Position(geometry);
+        width = geometry.getWidth();
+        height = geometry.getHeight();
+        if (listener != null) addGameListener(listener);
         startNewGame(firstTurn);
     }
     /**
-     * Private helper method to see if jansi libary can be loaded
+     * Subscribe a listener to the events of this game.
+     * @param listener the listener to add
      */
-    private void testJansi() {
-        try {
-            // test to see if jansi library can be loaded, if not fall back to
-            // not coloured output. Note that with each method that uses the 
-            // library that the AnsiConsole is installed and uninstalled because
-            // currently the program has no exit point so it can't cleanly 
-            // unistall it on termination.
-             AnsiConsole.systemInstall();
-             AnsiConsole.systemUninstall();
-             jansiOkay = true;
-        } catch (UnsatisfiedLinkError e) {
-            System.out.println("Jansi library not loaded. No colour on output");
-            //System.out.println(e);
-            jansiOkay = false;
+    public synchronized void addGameListener(GameListener listener) {
+        GameListener[] added = new GameListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, added, 0, listeners.length);
+        added[listeners.length] = listener;
+        listeners = added;
+    }
+    /**
+     * Unsubscribe a listener from the events of this game.
+     * @param listener the listener to remove
+     */
+    public synchronized void removeGameListener(GameListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                GameListener[] removed = new GameListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, i);
+                System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+                listeners = removed;
+                return;
+            }
         }
     }
     /**
      * Start a new game with a randomly selected first player.
      */
     public final void startNewGame() {
-        clearBoard();
         if (Math.random() < 0.5) {
-            turn = 0;
+            startNewGame(0);
         } else {
-            turn = 1;
+            startNewGame(1);
         }
-        gameOver = false;
-        System.out.println("NEW GAME");
-        displayBoard();
     }
     /**
      * Start a new game with a user selected first player.
@@ -85,64 +135,31 @@ public class ConnectFour {
     public final void startNewGame(int firstTurn) {
         clearBoard();
         // if firstTurn isn't valid set to Player 1 (0)
-        if (firstTurn < 0 && firstTurn > 1) firstTurn = 0;
+        if (firstTurn < 0 || firstTurn > 1) firstTurn = 0;
         turn = firstTurn;
         gameOver = false;
-        System.out.println("NEW GAME");
-        displayBoard();
+        winner = -1;
+        for (GameListener listener : listeners) {
+            listener.gameStarted(this);
+        }
     }
     /**
      * Private helper function to clear the board for a new game.
      */
     private void clearBoard() {
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                board[j][i] = -1;
-            }
-        }
+        board.clear();
     }
     /**
      * Display the board by printing it out to the console.
      */
     public void displayBoard() {
-        if (jansiOkay) {
-            AnsiConsole.systemInstall();
-            System.out.println(ansi().bg(BLACK));
-            System.out.println(ansi().fg(numberColour) + "  1 2 3 4 5 6 7  ");
-            System.out.println(ansi().fg(boardColour) + "_________________");
-        } else {
-            System.out.println("  1 2 3 4 5 6 7");
-            System.out.println("_________________");
-        }
-        for (int i = height-1; i >= 0; i--) {
-            System.out.print("||");
-            for (int j = 0; j < width; j++) {
-                if (board[j][i] == 0) {
-                    if (jansiOkay) {
-                        System.out.print(ansi().fg(playerOneColour).a("X"));
-                        System.out.print(ansi().fg(boardColour).a("|"));
-                    } else {
-                        System.out.print("X|");
-                    }
-                } else if (board[j][i] == 1) {
-                    if (jansiOkay) {
-                        System.out.print(ansi().fg(playerTwoColour).a("O"));
-                        System.out.print(ansi().fg(boardColour).a("|"));
-                    } else {
-                        System.out.print("O|");
-                    }
-                } else {
-                 System.out.print("_|");
-                }
+        for (GameListener listener : listeners) {
+            if (listener instanceof ConsoleRenderer) {
+                ((ConsoleRenderer) listener).displayBoard(this);
+                return;
             }
-            System.out.println("|");
-        }
-        if (jansiOkay) {
-            System.out.println("TTTTTTTTTTTTTTTTT" + ansi().fg(defaultColour));
-            AnsiConsole.systemUninstall();
-        } else {
-            System.out.println("TTTTTTTTTTTTTTTTT");
         }
+        new ConsoleRenderer().displayBoard(this);
     }
     /**
      * Get which players turn it is. Returns 0 for Player 1, 1 for Player 2 or
@@ -155,6 +172,43 @@ public class ConnectFour {
     public int getTurn() {
         return turn;
     }
+    /**
+     * Get the board the game is played on. The position should only be read,
+     * moves must be made through {@link #playMove(int, int)}.
+     * @return the current position
+     */
+    public Position getPosition() {
+        return board;
+    }
+    /**
+     * Get the size of the board and the number in a row needed to win.
+     * @return the geometry
+     */
+    public Geometry getGeometry() {
+        return board.getGeometry();
+    }
+    /**
+     * Get the number of columns on the board.
+     * @return the board width
+     */
+    public int getWidth() {
+        return width;
+    }
+    /**
+     * Get the number of rows on the board.
+     * @return the board height
+     */
+    public int getHeight() {
+        return height;
+    }
+    /**
+     * Get the result of the game.
+     * @return 0 if player 1 won, 1 if player 2 won, -2 for a draw or -1 if
+     * the game is still being played
+     */
+    public int getWinner() {
+        return winner;
+    }
     /**
      * This method plays a move in the game.
      * @param player the player making the move
@@ -162,53 +216,43 @@ public class ConnectFour {
      * @return true if the move was played, false if the move was rejected
      */
     public boolean playMove(int player, int play){
-        if (player != turn) {
-            System.out.println("It is not your turn.");
-            return false;
+        if (player != turn || gameOver) {
+            return reject(player, play, NOT_YOUR_TURN);
         }
         if (play < 1 || play > width) {
-            System.out.println("Not a valid move.");
-            return false;
+            return reject(player, play, INVALID_COLUMN);
+        }
+        if ((board.legalMoves() & (1 << (play - 1))) == 0) {
+            return reject(player, play, COLUMN_FULL);
+        }
+        board.play(player, play - 1);
+        turn = (turn + 1) % 2;
+        winner = checkWinner(player, play - 1);
+        if (winner != -1) {
+            gameOver = true;
+            turn = -1;
+        }
+        for (GameListener listener : listeners) {
+            listener.movePlayed(this, player, play);
         }
-        if (jansiOkay) AnsiConsole.systemInstall();
-        for (int i = 0; i < height; i++) {
-            if (board[play - 1][i] == -1) {
-                board[play - 1][i] = player;
-                if (jansiOkay) {
-                    System.out.println(ansi().fg((turn == 0)?playerOneColour:playerTwoColour) +
-                            "\n\nPlayer " + (turn + 1) + ansi().fg(defaultColour) + 
-                            " placed their token in " + 
-                            ansi().fg(numberColour) + "column " + play +
-                            ansi().fg(defaultColour));
-                } else {
-                    System.out.println("\n\nPlayer " + (turn + 1) + 
-                            " placed their token in column " + play);
-                }
-                turn = (turn + 1) % 2;
-                displayBoard();
-                int winner = checkWinner();
-                if (winner == -2) {
-                    System.out.println("GAME OVER!\nDrawn game.");
-                    gameOver = true;
-                    turn = -1;
-                } else if (winner != -1) {
-                    if (jansiOkay) {
-                        System.out.println("GAME OVER!\nWinner is " + 
-                                ansi().fg((winner == 0)?playerOneColour:playerTwoColour) +
-                                "Player " + (winner + 1) + ansi().fg(defaultColour));
-                    } else {
-                        System.out.println("GAME OVER!\nWinner is Player " 
-                                + (winner + 1));
-                    }
-                    gameOver = true;
-                    turn = -1;
-                }
-                if (jansiOkay) AnsiConsole.systemUninstall();
-                return true;
+        if (gameOver) {
+            for (GameListener listener : listeners) {
+                listener.gameOver(this, winner);
             }
         }
-        System.out.println("That column is full.");
-        if (jansiOkay) AnsiConsole.systemUninstall();
+        return true;
+    }
+    /**
+     * Private helper to tell the listeners a move was rejected.
+     * @param player the player making the move
+     * @param play the column tried
+     * @param reason the reason the move was rejected
+     * @return false so it can be returned from playMove
+     */
+    private boolean reject(int player, int play, int reason) {
+        for (GameListener listener : listeners) {
+            listener.moveRejected(this, player, play, reason);
+        }
         return false;
     }
     /**
@@ -219,85 +263,44 @@ public class ConnectFour {
         return gameOver;
     }
     /**
-     * Private helper function to determine if the board contains a winning play
+     * Private helper function to determine if the last move ended the game.
+     * Only the lines through the token just played are checked since no
+     * other line can have changed, and a win is checked before a draw so 
+     * that filling the last cell with a winning token counts as a win.
+     * @param player the player who just moved
+     * @param column the column (0 based) the token was placed in
      * @return 0 if player 1 wins, 1 if player 2 wins, -1 for no winner yet,
      * -2 for a draw
      */
-    private int checkWinner() {
-        // set to negative one for no winner
-        int winner = -1;
-        // check for draw
-        boolean draw = true;
-        for (int i = 0; i < width; i++) {
-            if (board[i][height - 1] == -1) {
-               draw = false;
-               break;
-            }
+    private int checkWinner(int player, int column) {
+        if (board.completesLine(player, column)) {
+            return player;
         }
-        if (draw) {
+        // check for draw
+        if (board.isFull()) {
             return -2;
         }
-        // check horizontal
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width - 3; j++)
-                if (board[j][i] == board[j+1][i] &&
-                        board[j][i] == board[j+2][i] &&
-                        board[j][i] == board[j+3][i]) {
-                    winner = board[j][i];
-                    if (winner != -1) {
-                        //System.out.println("HORIZONTAL " + i + " " + j);
-                        return winner;
-                    }
-                }
-        }
-        // check vertical
-        for (int i = 0; i < height - 3; i++) {
-            for (int j = 0; j < width; j++)
-                if (board[j][i] == board[j][i+1] &&
-                        board[j][i] == board[j][i+2] &&
-                        board[j][i] == board[j][i+3]) {
-                    winner = board[j][i];
-                    if (winner != -1) {
-                        //System.out.println("VERTICAL " + i + " " + j);
-                        return winner;
-                    }
-                }
-        }
-        // check diagonal one
-        for (int i = 0; i < height - 3; i++) {
-            for (int j = 0; j < width - 3; j++)
-                if (board[j][i] == board[j+1][i+1] &&
-                        board[j][i] == board[j+2][i+2] &&
-                        board[j][i] == board[j+3][i+3]) {
-                    winner = board[j][i];
-                    if (winner != -1) {
-                        //System.out.println("DIAGONAL 1 " + i + " " + j);
-                        return winner;
-                    }
-                }
-        }
-        // check diagonal two
-        for (int i = 0; i < height - 3; i++) {
-            for (int j = 3; j < width; j++)
-                if (board[j][i] == board[j-1][i+1] &&
-                        board[j][i] == board[j-2][i+2] &&
-                        board[j][i] == board[j-3][i+3]) {
-                    winner = board[j][i];
-                    if (winner != -1) {
-                        //System.out.println("DIAGONAL 2 " + i + " " + j);
-                        return winner;
-                    }
-                }
-        }
-        return winner;
+        // no winner yet
+        return -1;
     }
 
     /**
      * The main method for this class is simply a test where the computer 
-     * randomly plays out until the game ends by win or draw.
-     * @param args the command line arguments don't do anything
+     * randomly plays out until the game ends by win or draw.<br>
+     * Running with "-simulate [games] [threads] [seed]" instead plays a batch
+     * of headless games with the {@link Simulator}, and "-tournament ..."
+     * plays computer strategies against each other in a {@link Tournament}.
+     * @param args the command line arguments, blank for a single game
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("-simulate")) {
+            Simulator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-tournament")) {
+            Tournament.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         ConnectFour c4 = new ConnectFour();
         // play out randomly until game over
         while(!c4.isGameOver()) {
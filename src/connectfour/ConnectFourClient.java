@@ -1,18 +1,33 @@
 package connectfour;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
  * This class acts as the client to play the ConnectFour game with the 
  * ConnectFourServer. <br>
  * Player 1 runs the server code and Player 2 runs the client code.<br>
- * Both server and client maintain their own ConnectFour object.
+ * Both server and client maintain their own ConnectFour object, on the board
+ * size the server sends when the client connects.<br>
+ * With -binary the client speaks the binary protocol described in
+ * {@link Frame}, which the server serves on its own port. The server then
+ * runs the only copy of the game and the client just draws it. If the
+ * connection drops the client reconnects and the server sends it the moves
+ * it missed.
  * @author Stephen Whitely
  */
 public class ConnectFourClient {
@@ -21,16 +36,142 @@ public class ConnectFourClient {
     static Socket socket;
     static DataOutputStream outStream;
     static BufferedReader inStream;
+    // computer player for Player 2, made once the board size is known, and
+    // how long it thinks, null if a person is playing
+    static Engine ai;
+    static Duration thinkingTime;
+    // the file the computer keeps the positions it solves in, or null
+    static String databaseFile;
+    // the computer's solved openings, or null to always search
+    static OpeningBook book;
+    // size of the board, standard until the server says otherwise
+    static Geometry geometry = Geometry.STANDARD;
+    // binary protocol state, the frame and buffer are reused for each read
+    static boolean binary;
+    static DataInputStream frameStream;
+    static final ByteBuffer frameBuffer = ByteBuffer.allocate(Frame.MAX_LENGTH);
+    static final Frame frame = new Frame();
+    static int sessionId;
+    static int sequence;
+    static int rating = Matchmaker.DEFAULT_RATING;
+    // the session to watch instead of playing, 0 for any, -1 to play
+    static int watch = -1;
+    // whether the board is repainted a cell at a time instead of reprinted
+    static boolean incremental;
+    // where the server is, to reconnect to it
+    static String host;
+    static int port;
+    // the key to take our seat back after reconnecting, and the sequence
+    // number of the last frame from the server
+    static boolean resumable;
+    static int resumeKey;
+    static int lastSequence;
+    // how many times to try to reconnect, a second apart
+    static final int RECONNECT_ATTEMPTS = 30;
     /**
      * The main method of this class runs the client for Player 2 to play when
      * connecting to another player running the ConnectFourServer.
      * @param args user can add two arguments for host and port or leave blank
-     * to use defaults
+     * to use defaults, followed by "-binary" to use the binary protocol,
+     * "-rating N" to give the server a rating to match the client by,
+     * "-watch ID" to watch game ID, or any game for 0, instead of playing,
+     * "-incremental" to draw the board once and then repaint only the cells
+     * that change, "-ai [milliseconds]" to have the computer play
+     * Player 2, "-db file" for the computer to keep the positions it
+     * solves in a database file and "-book file" to give it an opening book,
+     * or "-load"
+     * followed by the options of the {@link LoadGenerator} to play thousands
+     * of bots at once
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("-load")) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         //c4 = new ConnectFour(-1);
-        String host;
-        int port;
+        // check for the binary protocol and display options before the others
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-binary")) {
+                binary = true;
+                String[] rest = Arrays.copyOf(args, args.length - 1);
+                System.arraycopy(args, i + 1, rest, i, args.length - i - 1);
+                args = rest;
+                i--;
+            } else if (args[i].equals("-incremental")) {
+                incremental = true;
+                String[] rest = Arrays.copyOf(args, args.length - 1);
+                System.arraycopy(args, i + 1, rest, i, args.length - i - 1);
+                args = rest;
+                i--;
+            } else if (args[i].equals("-db") && i + 1 < args.length) {
+                databaseFile = args[i + 1];
+                String[] rest = Arrays.copyOf(args, args.length - 2);
+                System.arraycopy(args, i + 2, rest, i, args.length - i - 2);
+                args = rest;
+                i--;
+            } else if (args[i].equals("-book") && i + 1 < args.length) {
+                try {
+                    book = OpeningBook.open(Paths.get(args[i + 1]));
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                    System.exit(1);
+                }
+                String[] rest = Arrays.copyOf(args, args.length - 2);
+                System.arraycopy(args, i + 2, rest, i, args.length - i - 2);
+                args = rest;
+                i--;
+            } else if (args[i].equals("-watch") && i + 1 < args.length) {
+                try {
+                    watch = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    watch = -1;
+                }
+                if (watch < 0) {
+                    System.out.println("Usage: java connectfour.ConnectFourClient [hostName port#] [-binary [-rating N | -watch ID]] [-incremental] [-ai [milliseconds]] [-db file] [-book file]");
+                    System.exit(1);
+                }
+                String[] rest = Arrays.copyOf(args, args.length - 2);
+                System.arraycopy(args, i + 2, rest, i, args.length - i - 2);
+                args = rest;
+                i--;
+            } else if (args[i].equals("-rating") && i + 1 < args.length) {
+                try {
+                    rating = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    rating = -1;
+                }
+                if (rating < 0 || rating > 65535) {
+                    System.out.println("Usage: java connectfour.ConnectFourClient [hostName port#] [-binary [-rating N | -watch ID]] [-incremental] [-ai [milliseconds]] [-db file] [-book file]");
+                    System.exit(1);
+                }
+                String[] rest = Arrays.copyOf(args, args.length - 2);
+                System.arraycopy(args, i + 2, rest, i, args.length - i - 2);
+                args = rest;
+                i--;
+            }
+        }
+        // check for the computer player option at the end of the args
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-ai")) {
+                long timeLimit = 1000;
+                if (i + 1 < args.length) {
+                    try {
+                        timeLimit = Long.parseLong(args[i + 1]);
+                    } catch (NumberFormatException nfe) {
+                        timeLimit = -1;
+                    }
+                    // a zero budget would mean no limit, a full solve each move
+                    if (timeLimit <= 0) {
+                        System.out.println("Usage: java connectfour.ConnectFourClient [hostName port#] [-binary [-rating N | -watch ID]] [-incremental] [-ai [milliseconds]] [-db file] [-book file]");
+                        System.exit(1);
+                    }
+                }
+                thinkingTime = Duration.ofMillis(timeLimit);
+                System.out.println("Computer is playing as Player 2");
+                args = Arrays.copyOf(args, i);
+                break;
+            }
+        }
         // check that user has put in args for server host and port
         if (args.length == 0) {
             System.out.println("Using default host 'localhost' and port# 1234");
@@ -40,7 +181,7 @@ public class ConnectFourClient {
 
             if (args.length != 2) {
                 System.out.println("Incorrect arguments used.");
-                System.out.println("Usage: java squarenumber.SquareNumberClient hostName port#");
+                System.out.println("Usage: java connectfour.ConnectFourClient [hostName port#] [-binary [-rating N | -watch ID]] [-incremental] [-ai [milliseconds]] [-db file] [-book file]");
                 System.exit(1);
             }
             // get server host and port
@@ -51,7 +192,8 @@ public class ConnectFourClient {
         try {
             socket = new Socket(host, port);
             inStream = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            outStream = new DataOutputStream(socket.getOutputStream());
+            outStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (binary) frameStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         } catch (UnknownHostException e) {
             System.out.println("Error connecting. Check host and port.\n" + e);
             System.exit(1);
@@ -61,16 +203,35 @@ public class ConnectFourClient {
         }
         // scanner for user input from console
         Scanner sc = new Scanner(System.in);
+        if (binary) {
+            try {
+                playBinary(sc);
+            } catch (IOException e) {
+                System.err.println(e);
+                System.out.println("IO error occured. Cient exiting.");
+            }
+        }
         // loop to communicate with server
-        while (true) {
+        while (!binary) {
             try {
                 if (c4 == null || c4.isGameOver()) {
                     String message = inStream.readLine();
+                    if (message == null) throw new EOFException("Server closed the connection");
+                    if (c4 == null && message.indexOf('x') >= 0) {
+                        // the board size, sent before the first game
+                        try {
+                            geometry = Geometry.parse(message);
+                        } catch (IllegalArgumentException e) {
+                            System.out.println(e.getMessage());
+                            System.exit(1);
+                        }
+                        continue;
+                    }
                     try {
                         int command = Integer.parseInt(message);
                         if (command == 0 || command == 1) {
                             if (c4 == null) {
-                                c4 = new ConnectFour(command);
+                                c4 = new ConnectFour(geometry, command, new ConsoleRenderer(incremental));
                             } else {
                                 c4.startNewGame(command);
                             }
@@ -84,9 +245,10 @@ public class ConnectFourClient {
                 }
                 if (c4.getTurn() == 0) {
                     String message = inStream.readLine();
+                    if (message == null) throw new EOFException("Server closed the connection");
                     try {
                         int command = Integer.parseInt(message);
-                        if (command > 0 && command < 8) {
+                        if (command > 0 && command <= c4.getWidth()) {
                             c4.playMove(0, command);
                         } else {
                             continue;
@@ -95,20 +257,27 @@ public class ConnectFourClient {
                         continue;
                     }
                 }
+                if (c4.getTurn() == 1 && thinkingTime != null) {
+                    int command = computer().bestMove(c4, thinkingTime);
+                    c4.playMove(1, command);
+                    sendMove(command);
+                    continue;
+                }
                 if (c4.getTurn() == 1) {
                     System.out.println("Enter your next move.");
                     String userInput = sc.nextLine();
                     if (userInput.length() > 0) {
                         try {
                             int command = Integer.parseInt(userInput);
-                            if (command > 0 && command < 8) {
+                            if (command > 0 && command <= c4.getWidth()) {
                                 c4.playMove(1, command);
-                                sendMessage(userInput);
+                                sendMove(command);
                             } else {
                                 continue;
                             }
                         } catch (NumberFormatException nfe) {
-                            System.out.println("Please enter a number from 1 to 7");
+                            System.out.println("Please enter a number from 1 to "
+                                    + c4.getWidth());
                             continue;
                         }
                     }
@@ -130,15 +299,244 @@ public class ConnectFourClient {
         }
     }
     /**
-     * A private method for the client to send a message to the server.
-     * @param message the message to send on the output stream
+     * A private method for the client to send a move to the server.
+     * @param column the column played
      * @throws IOException 
      */
-    private static void sendMessage(String message) throws IOException {
-        outStream.writeBytes(message);
+    private static void sendMove(int column) throws IOException {
+        if (binary) {
+            outStream.write(Frame.encode(Frame.MOVE, sessionId, ++sequence, column));
+            outStream.flush();
+            return;
+        }
+        // the stream is buffered, so the line goes in one write on the flush
+        outStream.writeBytes(Integer.toString(column));
         outStream.write(13);
         outStream.write(10);
         outStream.flush();
 
     }
+    /**
+     * A private method to play with the binary protocol. The server runs the
+     * game, so the client keeps no game of its own: it builds a board to
+     * draw from the moves the server sends, only checking that each move
+     * fits on the board, and never looks for a winner itself.
+     * @param sc the scanner for the user's moves
+     * @throws IOException if the connection fails or the server sends a move
+     * that can't be played
+     */
+    private static void playBinary(Scanner sc) throws IOException {
+        // whether the last frame from the server said it is our turn
+        boolean turn = false;
+        if (watch >= 0) {
+            // a watcher is sent the game as Player 2 sees it but never moves
+            outStream.write(Frame.encode(Frame.WATCH, watch, ++sequence));
+        } else {
+            // ask for an opponent
+            outStream.write(Frame.encode(Frame.JOIN, 0, ++sequence, rating >>> 8, rating & 0xFF));
+        }
+        outStream.flush();
+        ConsoleRenderer renderer = new ConsoleRenderer(incremental);
+        Position board = null;
+        // the columns the server says can be played, bit c - 1 for column c
+        int legalMoves = 0;
+        boolean myTurn = false;
+        while (true) {
+            Frame message;
+            try {
+                message = readFrame();
+            } catch (IOException e) {
+                if (!reconnect()) throw e;
+                continue;
+            }
+            switch (message.getOpcode()) {
+                case Frame.NEW_GAME:
+                    if (message.getPayloadLength() != 4) break;
+                    sessionId = message.getSessionId();
+                    lastSequence = message.getSequence();
+                    if (board == null) {
+                        try {
+                            geometry = Geometry.of(message.getPayload(1), message.getPayload(2),
+                                    message.getPayload(3));
+                        } catch (IllegalArgumentException e) {
+                            System.out.println(e.getMessage());
+                            System.exit(1);
+                        }
+                        board = new Position(geometry);
+                    } else {
+                        board.clear();
+                    }
+                    legalMoves = board.legalMoves();
+                    turn = message.getPayload(0) == 1;
+                    myTurn = turn;
+                    renderer.showNewGame(board);
+                    break;
+                case Frame.STATE:
+                    if (board == null || message.getPayloadLength() != 6) break;
+                    // the client is always Player 2
+                    int player = (message.getPayload(0) == 1) ? 1 : 0;
+                    int column = message.getPayload(1);
+                    if (column < 1 || column > geometry.getWidth() || !board.canPlay(column - 1)) {
+                        throw new ProtocolException("Server sent a move in column " + column);
+                    }
+                    board.play(player, column - 1);
+                    lastSequence = message.getSequence();
+                    turn = message.getPayload(3) == 1;
+                    myTurn = turn;
+                    legalMoves = message.getPayload(4) << 8 | message.getPayload(5);
+                    renderer.showMove(board, player, column);
+                    break;
+                case Frame.RESULT:
+                    if (message.getPayloadLength() != 1) break;
+                    lastSequence = message.getSequence();
+                    turn = false;
+                    myTurn = false;
+                    int result = message.getPayload(0);
+                    renderer.showResult((result == Frame.WON) ? 1 : (result == Frame.LOST) ? 0 : -2);
+                    break;
+                case Frame.ERROR:
+                    if (message.getPayloadLength() != 1) break;
+                    if (message.getPayload(0) == Frame.NO_SUCH_GAME) {
+                        System.out.println((watch >= 0) ? "There is no game " + watch + " to watch."
+                                : "The game has ended.");
+                        System.exit(1);
+                    }
+                    renderer.showRejected(message.getPayload(0));
+                    // a refused move leaves it our turn to try again
+                    int reason = message.getPayload(0);
+                    myTurn = reason == ConnectFour.INVALID_COLUMN || reason == ConnectFour.COLUMN_FULL;
+                    break;
+                case Frame.RESUME:
+                    if (message.getPayloadLength() != 4) break;
+                    resumeKey = message.getPayload(0) << 24 | message.getPayload(1) << 16
+                            | message.getPayload(2) << 8 | message.getPayload(3);
+                    resumable = true;
+                    // after reconnecting we are up to date, a move that was
+                    // lost with the connection has to be made again
+                    myTurn = turn;
+                    break;
+                default:
+                    break;
+            }
+            if (myTurn && watch < 0) {
+                try {
+                    sendMove(chooseMove(sc, board, legalMoves));
+                } catch (IOException e) {
+                    if (!reconnect()) throw e;
+                }
+                myTurn = false;
+            }
+        }
+    }
+    /**
+     * A private method to reconnect to the server after the connection
+     * drops and ask for our seat back, sending the key the server gave us
+     * and the last frame we had so it sends only what we missed.
+     * @return true if we reconnected, false if we can't
+     */
+    private static boolean reconnect() {
+        if (!resumable) return false;
+        System.out.println("Lost the connection to the server, reconnecting.");
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // it is no use anyway
+        }
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(1000);
+                socket = new Socket(host, port);
+                outStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                frameStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                outStream.write(Frame.encode(Frame.RESUME, sessionId, ++sequence, resumeKey >>> 24,
+                        resumeKey >>> 16 & 0xFF, resumeKey >>> 8 & 0xFF, resumeKey & 0xFF,
+                        lastSequence >>> 8, lastSequence & 0xFF));
+                outStream.flush();
+                return true;
+            } catch (IOException e) {
+                // the server may be back in a moment
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+    /**
+     * A private method to get the computer player, made on its first move
+     * once the server has sent the size of the board. If the database file
+     * or opening book can't be used the computer plays without it.
+     * @return the engine
+     */
+    private static Engine computer() {
+        if (ai != null) return ai;
+        ai = new Engine(geometry, 0, new TranspositionTable(22));
+        if (book != null) {
+            if (book.getGeometry() == geometry) {
+                ai.setOpeningBook(book);
+            } else {
+                System.out.println("The opening book is for a " + book.getGeometry()
+                        + " board, playing without it.");
+            }
+        }
+        if (databaseFile != null) {
+            try {
+                PositionDatabase database = PositionDatabase.open(Paths.get(databaseFile),
+                        geometry, PositionDatabase.DEFAULT_SLOTS);
+                ai.setPositionDatabase(database);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        database.close();
+                    } catch (IOException e) {
+                        System.err.println(e);
+                    }
+                }));
+            } catch (IOException e) {
+                System.out.println(e);
+                System.out.println("Playing without the position database.");
+            }
+        }
+        return ai;
+    }
+    /**
+     * A private method to get the next move from the computer or the user.
+     * The user is only offered the columns the server says can be played.
+     * @param sc the scanner for the user's moves
+     * @param board the board to move on
+     * @param legalMoves bit c - 1 set for each column c that can be played
+     * @return the column, 1 to the board width
+     */
+    private static int chooseMove(Scanner sc, Position board, int legalMoves) {
+        if (thinkingTime != null) return computer().bestMove(board, 1, thinkingTime);
+        int width = board.getGeometry().getWidth();
+        while (true) {
+            System.out.println("Enter your next move.");
+            String userInput = sc.nextLine();
+            if (userInput.length() == 0) continue;
+            try {
+                int command = Integer.parseInt(userInput);
+                if (command > 0 && command <= width && (legalMoves & (1 << (command - 1))) != 0) {
+                    return command;
+                }
+                if (command > 0 && command <= width) System.out.println("That column is full.");
+            } catch (NumberFormatException nfe) {
+                System.out.println("Please enter a number from 1 to " + width);
+            }
+        }
+    }
+    /**
+     * A private method to read the next frame from the server.
+     * @return the frame, which is overwritten by the next read
+     * @throws IOException if the connection fails or the server sends
+     * something that is not a frame
+     */
+    private static Frame readFrame() throws IOException {
+        int length = frameStream.read();
+        if (length < 0) throw new EOFException("Server closed the connection");
+        frameBuffer.clear();
+        frameBuffer.put((byte) length);
+        frameStream.readFully(frameBuffer.array(), 1, length);
+        frameBuffer.position(0).limit(1 + length);
+        frame.read(frameBuffer);
+        return frame;
+    }
 }
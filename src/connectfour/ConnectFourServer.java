@@ -1,111 +1,880 @@
 package connectfour;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Scanner;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class acts as a server to play the ConnectFour game. <br>
- * Player 1 runs the server code and Player 2 runs the client code.<br>
- * Both server and client maintain their own ConnectFour object.
+ * Any number of clients can connect with the ConnectFourClient class. Each
+ * client is paired with another by the {@link Matchmaker}, or with the
+ * computer if the server was started with -ai, and they play game after
+ * game in their own {@link GameSession} until one of them leaves. The server
+ * tosses the coin for who goes first in the first game, after that the
+ * players take turns.<br>
+ * One thread handles every socket with a non-blocking NIO selector, so an
+ * idle client costs nothing but its buffers. Moves are checked and played
+ * by a small fixed pool of worker threads, so a slow computer move never
+ * holds up the other games. The worker queue is bounded: when it is full
+ * the selector thread runs the work itself, which stops it reading more
+ * until the workers catch up.<br>
+ * In blocking mode each client instead gets its own thread running a plain
+ * blocking read loop, a virtual thread on Java 21 or later, so the two ways
+ * of serving clients can be compared.<br>
+ * The server picks the size of the board and sends it to each client as the
+ * first line, for example "7x6x4" for 7 columns, 6 rows and four in a row.
+ * Clients can also speak the binary protocol described in {@link Frame} on a
+ * second port, see {@link #setBinaryPort(int)}. Binary clients can also
+ * watch a game instead of playing, and a binary client that loses its
+ * connection has a while to come back to its game, see
+ * {@link #setResumeTime(Duration)}.
  * @author Stephen Whitely P308730
  */
 public class ConnectFourServer {
-    private static int socket = 1234;
-    private static DataOutputStream outStream;
-    private static BufferedReader inStream;
-    private static ConnectFour c4;
+    private final int port;
+    private final Geometry geometry;
+    // how long the computer thinks for, null if clients play each other
+    private final Duration thinkingTime;
+    // a thread per client instead of the selector
+    private final boolean blocking;
+    private final ThreadPoolExecutor workers;
+    // where sessions run their work, the workers or a client's own thread
+    private final Executor sessionExecutor;
+    // the computer player, engines are reused and share one table, or null
+    // if clients play each other
+    private final Strategy computer;
+    // where the computer keeps the positions it solves, or null for nowhere
+    private volatile PositionDatabase database;
+    // the computer's solved openings, or null to always search
+    private volatile OpeningBook book;
+    private final AtomicLong sessionIds = new AtomicLong();
+    private final AtomicLong sessionCount = new AtomicLong();
+    // moves from clients, messages to them and writes to their sockets
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    // the open sessions by id, for clients that want to watch one
+    private final ConcurrentHashMap<Long, GameSession> sessions = new ConcurrentHashMap<>();
+    // the range of ratings paired straight away, 0 for any, and how long
+    // a client should wait before the range is widened
+    private int bandWidth;
+    private long matchTarget = 100;
+    private volatile Matchmaker matchmaker;
+    // how long the seat of a binary client that lost its connection is
+    // kept for it, and the timer that gives up on it
+    private Duration resumeTime = Duration.ofSeconds(30);
+    private volatile ScheduledExecutorService timer;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    // the port for binary protocol clients, -1 for none
+    private int binaryPort = -1;
+    private ServerSocketChannel binaryChannel;
+    // the blocking mode sockets and clients
+    private ServerSocket serverSocket;
+    private ServerSocket binarySocket;
+    private final Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
     /**
-     * The main method runs the server for Player 1 to play and for Player 2 to
-     * connect to via the ConnectFourClient class.
-     * @param args do nothing
+     * Constructor for a server.
+     * @param port the port to listen on, 0 for any free port
+     * @param geometry the size of the board for every game
+     * @param thinkingTime how long the computer thinks for each move, or
+     * null to pair clients with each other
+     * @param threads the number of worker threads
      */
-    public static void main(String[] args) {
-        // try (with resource) to create ServerSocket
-        try (ServerSocket serverSocket = new ServerSocket(socket)) {
-            System.out.println("Server is listening on port #"
-                    + serverSocket.getLocalPort());
-            // try (with resource) to wait and listen on port
-            try (Socket clientSocket = serverSocket.accept()) {
-                // get client name and port
-                String clientHostName = clientSocket.getInetAddress().getHostName();
-                int clientPortNumber = clientSocket.getLocalPort();
-                System.out.println("Connected from " + clientHostName
-                        + " on port #" + clientPortNumber);
-                // create input stream
-                inStream = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                // create output stream
-                outStream = new DataOutputStream(clientSocket.getOutputStream());
-                // scanner for user input from console
-                Scanner sc = new Scanner(System.in);
-                // instantiate the ConnectFour object
-                c4 = new ConnectFour();
-                // communicate with client and play game
-                sendMessage("" + c4.getTurn());
-                while (true) {
-                    if (c4.isGameOver()) {
-                        c4.startNewGame();
-                        sendMessage("" + c4.getTurn());
+    public ConnectFourServer(int port, Geometry geometry, Duration thinkingTime, int threads) {
+        this(port, geometry, thinkingTime, threads, false);
+    }
+    /**
+     * Constructor for a server that can give each client its own thread.
+     * @param port the port to listen on, 0 for any free port
+     * @param geometry the size of the board for every game
+     * @param thinkingTime how long the computer thinks for each move, or
+     * null to pair clients with each other
+     * @param threads the number of worker threads, not used in blocking mode
+     * @param blocking true for a thread per client, false for the selector
+     */
+    public ConnectFourServer(int port, Geometry geometry, Duration thinkingTime, int threads,
+            boolean blocking) {
+        this.port = port;
+        this.blocking = blocking;
+        this.geometry = geometry;
+        this.thinkingTime = thinkingTime;
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 256), r -> {
+                    Thread thread = new Thread(r, "game worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        // a blocking session runs on whichever client thread hands it work
+        this.sessionExecutor = blocking ? Runnable::run : workers;
+        this.computer = (thinkingTime == null) ? null : computer(thinkingTime);
+    }
+    /**
+     * Private helper to make the computer player, whose engines are reused
+     * across games and share one table.
+     * @param thinkingTime how long the computer thinks for each move
+     * @return the computer player
+     */
+    private Strategy computer(Duration thinkingTime) {
+        TranspositionTable table = new TranspositionTable(22);
+        ConcurrentLinkedQueue<Engine> engines = new ConcurrentLinkedQueue<>();
+        return game -> {
+            Engine engine = engines.poll();
+            if (engine == null) {
+                engine = new Engine(geometry, 0, table);
+                engine.setPositionDatabase(database);
+                engine.setOpeningBook(book);
+            }
+            try {
+                return engine.bestMove(game, thinkingTime);
+            } finally {
+                engines.offer(engine);
+            }
+        };
+    }
+    /**
+     * Get the port the server is listening on, which is only known after
+     * {@link #run()} has started when the server was given port 0.
+     * @return the port
+     */
+    public int getPort() {
+        ServerSocketChannel channel = serverChannel;
+        if (channel != null) return channel.socket().getLocalPort();
+        ServerSocket socket = serverSocket;
+        return (socket == null) ? port : socket.getLocalPort();
+    }
+    /**
+     * Also listen for clients speaking the binary protocol described in
+     * {@link Frame}. The main port keeps the text protocol, and clients of
+     * either kind can be paired with each other.
+     * @param binaryPort the port, 0 for any free port or -1 for none, which
+     * must be set before {@link #run()} is called
+     */
+    public void setBinaryPort(int binaryPort) {
+        this.binaryPort = binaryPort;
+    }
+    /**
+     * Get the port for binary protocol clients.
+     * @return the port, or -1 if there is none
+     */
+    public int getBinaryPort() {
+        ServerSocketChannel channel = binaryChannel;
+        if (channel != null) return channel.socket().getLocalPort();
+        ServerSocket socket = binarySocket;
+        return (socket == null) ? binaryPort : socket.getLocalPort();
+    }
+    /**
+     * Keep the positions the computer solves in a database, so they are
+     * answered straight away by later games and later runs of the server.
+     * Must be set before {@link #run()} is called.
+     * @param database the database, or null to not keep results
+     * @throws IllegalArgumentException if the database is for a different
+     * board
+     */
+    public void setPositionDatabase(PositionDatabase database) {
+        if (database != null && database.getGeometry() != geometry) {
+            throw new IllegalArgumentException("Position database is for a "
+                    + database.getGeometry() + " board");
+        }
+        this.database = database;
+    }
+    /**
+     * Give the computer an opening book, so it answers the first moves of a
+     * game without searching. Must be set before {@link #run()} is called.
+     * @param book the book, or null to always search
+     * @throws IllegalArgumentException if the book is for a different board
+     */
+    public void setOpeningBook(OpeningBook book) {
+        if (book != null && book.getGeometry() != geometry) {
+            throw new IllegalArgumentException("Opening book is for a "
+                    + book.getGeometry() + " board");
+        }
+        this.book = book;
+    }
+    /**
+     * Set how clients are matched with each other, which must be done before
+     * {@link #run()} is called.
+     * @param bandWidth the range of ratings in each band of the matchmaker,
+     * or 0 to match any two clients
+     * @param target how long a client should wait before it is offered
+     * opponents from further away, in milliseconds
+     */
+    public void setMatchmaking(int bandWidth, long target) {
+        this.bandWidth = bandWidth;
+        this.matchTarget = target;
+    }
+    /**
+     * Set how long a binary client that loses its connection has to come
+     * back to its game before the game is ended, which must be done before
+     * {@link #run()} is called.
+     * @param resumeTime the time, or zero to end the game straight away
+     */
+    public void setResumeTime(Duration resumeTime) {
+        this.resumeTime = resumeTime;
+    }
+    /**
+     * Get the matchmaker, to read its metrics.
+     * @return the matchmaker, or null if the server is not running
+     */
+    public Matchmaker getMatchmaker() {
+        return matchmaker;
+    }
+    /**
+     * Get the number of games being played.
+     * @return the number of open sessions
+     */
+    public long getSessionCount() {
+        return sessionCount.get();
+    }
+    /**
+     * Get the number of moves clients have sent.
+     * @return the number of moves
+     */
+    public long getMoves() {
+        return moves.sum();
+    }
+    /**
+     * Get the number of messages sent to clients.
+     * @return the number of messages
+     */
+    public long getMessages() {
+        return messages.sum();
+    }
+    /**
+     * Get the number of writes to client sockets, each one system call.
+     * Messages sent together go out in one write.
+     * @return the number of writes
+     */
+    public long getSocketWrites() {
+        return writes.sum();
+    }
+    /**
+     * Count a message sent to a client.
+     */
+    void sent() {
+        messages.increment();
+    }
+    /**
+     * Count a write to a client's socket.
+     */
+    void wrote() {
+        writes.increment();
+    }
+    /**
+     * Run a task after a delay on the session timer, or straight away if
+     * the server is not running it.
+     * @param task the task
+     * @param millis the delay in milliseconds
+     */
+    void later(Runnable task, long millis) {
+        ScheduledExecutorService t = timer;
+        if (t != null) {
+            try {
+                t.schedule(task, millis, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException e) {
+                // the server has stopped
+            }
+        }
+        task.run();
+    }
+    /**
+     * Accept clients and run their games until {@link #stop()} is called.
+     * @throws IOException if the server socket can't be opened
+     */
+    public void run() throws IOException {
+        matchmaker = new Matchmaker(bandWidth, 64, matchTarget, this::paired);
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            if (blocking) {
+                runBlocking();
+            } else {
+                runSelector();
+            }
+        } finally {
+            matchmaker.shutdown();
+            timer.shutdownNow();
+        }
+    }
+    /**
+     * Private helper to serve every client from the selector thread.
+     * @throws IOException if the server socket can't be opened
+     */
+    private void runSelector() throws IOException {
+        selector = Selector.open();
+        serverChannel = listen(port, Protocol.TEXT);
+        if (binaryPort >= 0) binaryChannel = listen(binaryPort, Protocol.BINARY);
+        running = true;
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(key);
                         continue;
                     }
-                    if (c4.getTurn() == 1) {
-                        String message = inStream.readLine();
-                        try {
-                            int command = Integer.parseInt(message);
-                            if (command > 0 && command < 8) {
-                                c4.playMove(1, command);
-                            } else {
-                                continue;
-                            }
-                        } catch (NumberFormatException nfe) {
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable() && !connection.read()) {
+                            connection.close();
                             continue;
                         }
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    } catch (IOException e) {
+                        connection.close();
                     }
-                    if (c4.getTurn() == 0) {
-                        System.out.println("Enter your next move.");
-                        String userInput = sc.nextLine();
-                        if (userInput.length() > 0) {
-                            try {
-                                int command = Integer.parseInt(userInput);
-                                if (command > 0 && command < 8) {
-                                    c4.playMove(0, command);
-                                    sendMessage(userInput);
-                                } else {
-                                    continue;
-                                }
-                            } catch (NumberFormatException nfe) {
-                                System.out.println("Please enter a number from 1 to 7");
-                                continue;
-                            }
-                        }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+            serverChannel.close();
+            if (binaryChannel != null) binaryChannel.close();
+            selector.close();
+            workers.shutdownNow();
+        }
+    }
+    /**
+     * Private helper to open a server socket on the selector.
+     * @param port the port to listen on
+     * @param protocol the protocol of the clients that connect to it
+     * @return the server socket
+     * @throws IOException if the socket can't be opened
+     */
+    private ServerSocketChannel listen(int port, Protocol protocol) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port), 1024);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT, protocol);
+        return channel;
+    }
+    /**
+     * Private helper to accept clients and start a thread for each.
+     * @throws IOException if the server socket can't be opened
+     */
+    private void runBlocking() throws IOException {
+        ExecutorService threads = newThreadPerTaskExecutor();
+        serverSocket = new ServerSocket(port, 1024);
+        if (binaryPort >= 0) binarySocket = new ServerSocket(binaryPort, 1024);
+        running = true;
+        try {
+            if (binarySocket != null) {
+                ServerSocket binary = binarySocket;
+                threads.execute(() -> {
+                    try {
+                        acceptLoop(binary, Protocol.BINARY, threads);
+                    } catch (IOException e) {
+                        System.err.println("IOException occurred " + e);
                     }
+                });
+            }
+            acceptLoop(serverSocket, Protocol.TEXT, threads);
+        } finally {
+            serverSocket.close();
+            if (binarySocket != null) binarySocket.close();
+            for (BlockingConnection connection : connections) {
+                connection.close();
+            }
+            threads.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+    /**
+     * Private helper to accept clients on one socket and start a thread for
+     * each, until the server is stopped.
+     * @param serverSocket the socket
+     * @param protocol the protocol of the clients that connect to it
+     * @param threads the executor to run each client's thread
+     * @throws IOException if the socket fails while the server is running
+     */
+    private void acceptLoop(ServerSocket serverSocket, Protocol protocol,
+            ExecutorService threads) throws IOException {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!running) break;
+                throw e;
+            }
+            socket.setTcpNoDelay(true);
+            BlockingConnection connection = new BlockingConnection(socket, this, protocol,
+                    threads);
+            connections.add(connection);
+            threads.execute(connection);
+        }
+    }
+    /**
+     * Private helper to make an executor that runs each task on a new
+     * virtual thread, or a new daemon thread with a small stack where the
+     * Java runtime has no virtual threads.
+     * @return the executor
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(null, r, "game session", 256 * 1024);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    /**
+     * Stop the server. Every client is disconnected.
+     */
+    public void stop() {
+        running = false;
+        Selector s = selector;
+        if (s != null) s.wakeup();
+        for (ServerSocket socket : new ServerSocket[] {serverSocket, binarySocket}) {
+            if (socket == null) continue;
+            try {
+                // wakes the accept loop
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+    /**
+     * Private helper to accept a waiting client and find it a game.
+     * @param acceptKey the key of the server socket the client is waiting on
+     * @throws IOException if the client can't be set up
+     */
+    private void accept(SelectionKey acceptKey) throws IOException {
+        SocketChannel channel = ((ServerSocketChannel) acceptKey.channel()).accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        NioConnection connection = new NioConnection(channel, key, this,
+                (Protocol) acceptKey.attachment());
+        key.attach(connection);
+        connected(connection);
+    }
+    /**
+     * Handle a new client. A text client is found a game straight away, a
+     * binary client asks for one with a JOIN frame.
+     * @param connection the new client
+     */
+    void connected(Connection connection) {
+        if (connection.getProtocol() == Protocol.TEXT) {
+            findGame(connection, Matchmaker.DEFAULT_RATING);
+        }
+    }
+    /**
+     * Private helper to find a game for a client, either against the
+     * computer or against another client.
+     * @param connection the client
+     * @param rating the client's rating
+     */
+    private void findGame(Connection connection, int rating) {
+        if (thinkingTime == null) {
+            matchmaker.join(connection, rating);
+            return;
+        }
+        // the computer plays as Player 1, as it did on the old server
+        startSession(new GameSession(sessionIds.incrementAndGet(), geometry, null,
+                connection, computer, sessionExecutor, ThreadLocalRandom.current().nextInt(2)));
+    }
+    /**
+     * Private helper to start a game for two clients the matchmaker has
+     * paired. The server tosses the coin for who goes first.
+     * @param first the client that waited longest
+     * @param second the other client
+     */
+    private void paired(Connection first, Connection second) {
+        startSession(new GameSession(sessionIds.incrementAndGet(), geometry, first, second,
+                computer, sessionExecutor, ThreadLocalRandom.current().nextInt(2)));
+    }
+    /**
+     * Private helper to start a session, unless one of its clients left
+     * while it was being set up.
+     * @param session the session
+     */
+    private void startSession(GameSession session) {
+        sessionCount.incrementAndGet();
+        sessions.put(session.getId(), session);
+        session.execute(session::start);
+        for (Connection seat : session.getSeats()) {
+            // a client that closed before it had a session was not seen to leave
+            if (seat != null && seat.isClosed()) leaveSession(session, seat);
+        }
+    }
+    /**
+     * Handle a client disconnecting, ending its game.
+     * @param connection the client that left
+     */
+    void disconnected(Connection connection) {
+        connections.remove(connection);
+        Matchmaker m = matchmaker;
+        if (m != null) m.leave(connection);
+        GameSession session = connection.getSession();
+        if (session != null) leaveSession(session, connection);
+    }
+    /**
+     * Private helper to take a client out of its session. A binary client's
+     * seat is kept for it until the resume time is up.
+     * @param session the session
+     * @param connection the client that left
+     */
+    private void leaveSession(GameSession session, Connection connection) {
+        // after any moves the client sent before it closed
+        session.execute(() -> {
+            ScheduledExecutorService t = timer;
+            if (resumeTime.isZero() || t.isShutdown() || !session.hold(connection)) {
+                closeSession(session, connection);
+                return;
+            }
+            // does nothing if the client came back, as it is no longer seated
+            t.schedule(() -> session.execute(() -> closeSession(session, connection)),
+                    resumeTime.toMillis(), TimeUnit.MILLISECONDS);
+        });
+    }
+    /**
+     * Private helper to end a session because a client left.
+     * @param session the session
+     * @param connection the client that left
+     */
+    private void closeSession(GameSession session, Connection connection) {
+        if (session.leave(connection)) {
+            sessionCount.decrementAndGet();
+            sessions.remove(session.getId());
+        }
+    }
+    /**
+     * Private helper to put a client that lost its connection back in its
+     * seat.
+     * @param connection the client's new connection
+     * @param sessionId the id of its session
+     * @param sequence the sequence number of the client's message
+     * @param key the key of its seat
+     * @param last the sequence number of the last message it had
+     */
+    private void resume(Connection connection, int sessionId, int sequence, int key, int last) {
+        GameSession session = sessions.get((long) sessionId);
+        byte[] refused = Frame.encode(Frame.ERROR, sessionId, sequence, Frame.NO_SUCH_GAME);
+        if (session == null) {
+            reply(connection, refused);
+            return;
+        }
+        session.execute(() -> {
+            if (!session.resume(connection, key, last)) {
+                reply(connection, refused);
+            } else if (connection.isClosed()) {
+                // a client that closed before it was seated was not seen to leave
+                leaveSession(session, connection);
+            }
+        });
+    }
+    /**
+     * Private helper to add a client to the watchers of a game.
+     * @param connection the client
+     * @param sessionId the id of the game, 0 for any game
+     * @param sequence the sequence number of the client's message
+     */
+    private void watch(Connection connection, int sessionId, int sequence) {
+        GameSession session = null;
+        if (sessionId != 0) {
+            session = sessions.get((long) sessionId);
+        } else {
+            Iterator<GameSession> open = sessions.values().iterator();
+            if (open.hasNext()) session = open.next();
+        }
+        byte[] refused = Frame.encode(Frame.ERROR, sessionId, sequence, Frame.NO_SUCH_GAME);
+        if (session == null) {
+            reply(connection, refused);
+            return;
+        }
+        GameSession watched = session;
+        watched.execute(() -> {
+            if (!watched.watch(connection)) reply(connection, refused);
+        });
+    }
+    /**
+     * Run a task on the worker pool.
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        workers.execute(task);
+    }
+    /**
+     * Hand a line from a text protocol client to its game. Anything but a
+     * number is ignored, as the original server did.
+     * @param connection the client
+     * @param line the line
+     */
+    void received(Connection connection, String line) {
+        int column;
+        try {
+            column = Integer.parseInt(line.trim());
+        } catch (NumberFormatException nfe) {
+            return;
+        }
+        moved(connection, column, 0);
+    }
+    /**
+     * Handle a frame from a binary protocol client. The frame is reused
+     * for the next one, so nothing in it is kept.
+     * @param connection the client
+     * @param frame the frame
+     */
+    void received(Connection connection, Frame frame) {
+        switch (frame.getOpcode()) {
+            case Frame.MOVE:
+                if (frame.getPayloadLength() == 1) {
+                    moved(connection, frame.getPayload(0), frame.getSequence());
+                    return;
+                }
+                break;
+            case Frame.JOIN:
+                if (frame.getPayloadLength() == 2) {
+                    // a client already waiting or playing is left where it is
+                    if (connection.getSession() == null) {
+                        findGame(connection, frame.getPayload(0) << 8 | frame.getPayload(1));
+                    }
+                    return;
+                }
+                break;
+            case Frame.WATCH:
+                if (frame.getPayloadLength() == 0) {
+                    // a client already waiting or playing is left where it is
+                    if (connection.getSession() == null) {
+                        watch(connection, frame.getSessionId(), frame.getSequence());
+                    }
+                    return;
+                }
+                break;
+            case Frame.RESUME:
+                if (frame.getPayloadLength() == 6) {
+                    if (connection.getSession() == null) {
+                        resume(connection, frame.getSessionId(), frame.getSequence(),
+                                frame.getPayload(0) << 24 | frame.getPayload(1) << 16
+                                | frame.getPayload(2) << 8 | frame.getPayload(3),
+                                frame.getPayload(4) << 8 | frame.getPayload(5));
+                    }
+                    return;
+                }
+                break;
+            case Frame.PING:
+                reply(connection, Frame.encode(Frame.PING, frame.getSessionId(),
+                        frame.getSequence()));
+                return;
+            default:
+                break;
+        }
+        reply(connection, Frame.encode(Frame.ERROR, frame.getSessionId(), frame.getSequence(),
+                Frame.BAD_FRAME));
+    }
+    /**
+     * Private helper to answer a client straight away, for messages that
+     * don't come from its game.
+     * @param connection the client
+     * @param message the message
+     */
+    private static void reply(Connection connection, byte[] message) {
+        connection.send(message);
+        connection.flush();
+    }
+    /**
+     * Private helper to hand a move from a client to its game.
+     * @param connection the client
+     * @param column the column
+     * @param sequence the sequence number of the client's message
+     */
+    private void moved(Connection connection, int column, int sequence) {
+        moves.increment();
+        GameSession session = connection.getSession();
+        if (session != null) session.execute(() -> session.receive(connection, column, sequence));
+    }
+    /**
+     * The main method runs the server for clients to connect to via the
+     * ConnectFourClient class.
+     * @param args "-port N" to change the port from 1234, "-ai [milliseconds]"
+     * to have the computer play every client, "-size WxH[xN]" to change the
+     * board size and the number in a row to win, "-connect N" for the
+     * number in a row to win when the size leaves it out (4 unless changed),
+     * "-workers N" to change the number of worker threads, "-blocking"
+     * to give each client its own thread, "-binary N" to also listen for
+     * binary protocol clients on port N, "-band N" to only pair clients
+     * within N rating points at first, "-target milliseconds" for how long
+     * before a client is offered opponents further away, "-stats seconds"
+     * to print the matchmaking metrics and socket writes per move every so
+     * often, "-resume seconds" for how long a binary client has to come
+     * back to its game, 30 unless changed, "-db file" to keep the positions
+     * the computer solves in a database file and "-book file" to give the
+     * computer an opening book
+     */
+    public static void main(String[] args) {
+        int port = 1234;
+        long timeLimit = -1;
+        String size = Geometry.STANDARD.getWidth() + "x" + Geometry.STANDARD.getHeight();
+        int connect = Geometry.STANDARD.getConnect();
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean blocking = false;
+        int binaryPort = -1;
+        int bandWidth = 0;
+        long target = 100;
+        long statsPeriod = 0;
+        long resumeTime = 30;
+        String databaseFile = null;
+        String bookFile = null;
+        Geometry geometry = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-ai")) {
+                    timeLimit = 1000;
+                    if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                        timeLimit = Long.parseLong(args[++i]);
+                    }
+                    // a zero budget would mean no limit, a full solve each move
+                    if (timeLimit <= 0) throw new IllegalArgumentException("-ai " + timeLimit);
+                } else if (args[i].equals("-port") && i + 1 < args.length) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-size") && i + 1 < args.length) {
+                    size = args[++i];
+                } else if (args[i].equals("-connect") && i + 1 < args.length) {
+                    connect = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-workers") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-binary") && i + 1 < args.length) {
+                    binaryPort = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-band") && i + 1 < args.length) {
+                    bandWidth = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-target") && i + 1 < args.length) {
+                    target = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-stats") && i + 1 < args.length) {
+                    statsPeriod = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-resume") && i + 1 < args.length) {
+                    resumeTime = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-db") && i + 1 < args.length) {
+                    databaseFile = args[++i];
+                } else if (args[i].equals("-book") && i + 1 < args.length) {
+                    bookFile = args[++i];
+                } else if (args[i].equals("-blocking")) {
+                    blocking = true;
+                } else {
+                    throw new IllegalArgumentException(args[i]);
                 }
-                // close the streams
-                //inStream.close();
-                //outStream.close();
             }
-
+            // checked once every option is read, as -connect can come after
+            geometry = Geometry.parse(size, connect);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: java connectfour.ConnectFourServer [-port N]"
+                    + " [-ai [milliseconds]] [-size WxH[xN]] [-connect N] [-workers N] [-blocking]"
+                    + " [-binary N] [-band N] [-target milliseconds] [-stats seconds]"
+                    + " [-resume seconds] [-db file] [-book file]");
+            System.exit(1);
+        }
+        Duration thinkingTime = (timeLimit >= 0) ? Duration.ofMillis(timeLimit) : null;
+        ConnectFourServer server = new ConnectFourServer(port, geometry, thinkingTime, threads,
+                blocking);
+        server.setBinaryPort(binaryPort);
+        server.setMatchmaking(bandWidth, target);
+        server.setResumeTime(Duration.ofSeconds(resumeTime));
+        if (bookFile != null) {
+            try {
+                server.setOpeningBook(OpeningBook.open(Paths.get(bookFile)));
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        PositionDatabase database = null;
+        if (databaseFile != null) {
+            try {
+                database = PositionDatabase.open(Paths.get(databaseFile), geometry,
+                        PositionDatabase.DEFAULT_SLOTS);
+            } catch (IOException e) {
+                System.out.println(e);
+                System.exit(1);
+            }
+            server.setPositionDatabase(database);
+        }
+        if (statsPeriod > 0) {
+            long period = statsPeriod * 1000;
+            Thread stats = new Thread(() -> {
+                try {
+                    long moves = 0, messages = 0, writes = 0;
+                    while (true) {
+                        Thread.sleep(period);
+                        Matchmaker m = server.getMatchmaker();
+                        if (m != null) {
+                            System.out.println("Games " + server.getSessionCount() + ", " + m);
+                        }
+                        // since the last report, as the counts only go up
+                        long n = server.getMoves() - moves;
+                        if (n > 0) {
+                            System.out.printf("%d moves, per move %.2f messages in %.2f"
+                                    + " socket writes%n", n, (server.getMessages() - messages)
+                                    / (double) n, (server.getSocketWrites() - writes) / (double) n);
+                        }
+                        moves += n;
+                        messages = server.getMessages();
+                        writes = server.getSocketWrites();
+                    }
+                } catch (InterruptedException e) {
+                    // the server is stopping
+                }
+            }, "stats");
+            stats.setDaemon(true);
+            stats.start();
+        }
+        System.out.println("Server is listening on port #" + port + " for "
+                + geometry + " games" + ((thinkingTime != null)
+                ? " against the computer" : "")
+                + ((binaryPort >= 0) ? ", binary clients on port #" + binaryPort : ""));
+        try {
+            server.run();
         } catch (IOException e) {
             // print error to error stream
             System.err.println("IOException occurred " + e);
             System.out.println("IO error occured. Server exiting.");
+        } finally {
+            if (database != null) {
+                try {
+                    database.close();
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
         }
-
-    }
-    /**
-     * A private method for the server to send a message to the client.
-     * @param message the message to send on the output stream
-     * @throws IOException 
-     */
-    private static void sendMessage(String message) throws IOException {
-        outStream.writeBytes(message);
-        outStream.write(13);
-        outStream.write(10);
-        outStream.flush();
-
     }
 }
@@ -0,0 +1,51 @@
+package connectfour;
+
+/**
+ * One client connected to the {@link ConnectFourServer}.<br>
+ * A connection is how a {@link GameSession} talks to the player in one of
+ * its seats. Messages can be sent from any thread, the connection takes
+ * care of getting them onto the socket in order. Sending only queues a
+ * message, so that everything sent at once goes in one write when the
+ * connection is flushed.
+ */
+interface Connection {
+    /**
+     * Get the protocol the client speaks, which encodes every message it is
+     * sent.
+     * @return the protocol
+     */
+    Protocol getProtocol();
+    /**
+     * Send an encoded message to the client.
+     * @param message the bytes, which must not be changed afterwards
+     */
+    void send(byte[] message);
+    /**
+     * Start writing everything sent so far to the socket.
+     */
+    void flush();
+    /**
+     * Get how far behind the client is.
+     * @return the number of bytes sent but not yet written to the socket
+     */
+    int getBacklog();
+    /**
+     * Get the game this connection is playing in.
+     * @return the session, or null while waiting for an opponent
+     */
+    GameSession getSession();
+    /**
+     * Put the connection into a game.
+     * @param session the session, or null to take it out of its game
+     */
+    void setSession(GameSession session);
+    /**
+     * Close the connection. Closing a closed connection does nothing.
+     */
+    void close();
+    /**
+     * Check if the connection has been closed.
+     * @return true once {@link #close()} has been called
+     */
+    boolean isClosed();
+}
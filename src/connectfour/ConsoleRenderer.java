@@ -0,0 +1,539 @@
+package connectfour;
+
+import static org.fusesource.jansi.Ansi.*;
+import static org.fusesource.jansi.Ansi.Color.*;
+import org.fusesource.jansi.Ansi;
+import org.fusesource.jansi.AnsiConsole;
+import org.fusesource.jansi.internal.CLibrary;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class prints a ConnectFour game out to the console as it is played.
+ * It is the colour console output that used to be built into ConnectFour.
+ * The show methods print the same output for a board that is not part of a
+ * game, such as one a client builds from the moves its server sends.
+ * Note that this uses the jansi library which should work by default
+ * on Linux but on windows requires "jansi.dll" to be found in an appropriate
+ * environment path. (Untested on Apple OSX)<br>
+ * An incremental renderer draws the board once at the top of the screen and
+ * after that only repaints the cells that changed and the status line under
+ * the board, using cursor addressing. The whole board is only drawn again
+ * for a new game or when the terminal changes size.<br>
+ * Every piece of a frame (a cell, the edges, the column numbers, the escape
+ * codes for the colours) is encoded to bytes once and kept in a glyph
+ * cache, so a frame is put together by copying bytes. The cache is made
+ * again only if the colours or the colour support change.
+ */
+public class ConsoleRenderer implements GameListener {
+    // boolean to check if jansi.dll can be loaded, and the console stream
+    // found when it was checked, both set once
+    private static Boolean jansiOkay;
+    private static PrintStream console;
+    // colours
+    private static Color boardColour = YELLOW;
+    private static Color numberColour = GREEN;
+    private static Color playerOneColour = RED;
+    private static Color playerTwoColour = CYAN;
+    private static Color defaultColour = WHITE;
+    // where this renderer prints
+    private final PrintStream out;
+    // the output is built up here and printed in one go, rather than piece
+    // by piece through the synchronized stream
+    private byte[] frame = new byte[1024];
+    private int length;
+    // the encoded pieces of a frame, made for the board size and colours
+    // they were last needed for
+    private Glyphs glyphs;
+    // the rows above the board's top row on the screen when drawn
+    // incrementally: a blank line, the column numbers and the top edge
+    private static final int BOARD_TOP = 4;
+    // whether the terminal size can be read, cleared when it can't
+    private static boolean sizeReadable = true;
+    // how often the terminal size is read again between full redraws, as
+    // reading it is a system call
+    private static final long SIZE_CHECK_NANOS = 500_000_000L;
+    // whether to repaint only what changed, and what is on the screen: the
+    // cells as drawn (null until the board is drawn), the board's geometry
+    // and the terminal size at the time, last read at sizeCheckedAt into
+    // winSize
+    private final boolean incremental;
+    private int[] drawn;
+    private Geometry drawnGeometry;
+    private int drawnSize;
+    private long sizeCheckedAt;
+    private CLibrary.WinSize winSize;
+    /**
+     * Constructor to create a renderer that prints to the console.
+     */
+    public ConsoleRenderer() {
+        this(false);
+    }
+    /**
+     * Constructor to create a renderer that prints to the console, either
+     * printing each board in full as the game goes on or drawing the board
+     * once and repainting only the cells that change.
+     * @param incremental true to repaint only what changes, which needs a
+     * terminal that understands cursor addressing
+     */
+    public ConsoleRenderer(boolean incremental) {
+        this(console(), incremental);
+    }
+    /**
+     * Constructor to create a renderer that prints to a given stream, such
+     * as one a game server or a test has set up, instead of the console.
+     * Colour is still used if the jansi library loads.
+     * @param out the stream to print to
+     * @param incremental true to repaint only what changes, which needs a
+     * terminal that understands cursor addressing
+     */
+    public ConsoleRenderer(PrintStream out, boolean incremental) {
+        testJansi();
+        this.out = out;
+        this.incremental = incremental;
+    }
+    /**
+     * Private helper method to see if jansi libary can be loaded, the first
+     * time a renderer is made. If it can, the console stream is jansi's ANSI
+     * aware one, which is used directly rather than installed as System.out
+     * for each print, so printing never changes the global streams that
+     * other threads are using.
+     */
+    private static synchronized void testJansi() {
+        if (jansiOkay != null) return;
+        try {
+            // test to see if jansi library can be loaded, if not fall back to
+            // not coloured output
+            console = AnsiConsole.out();
+            jansiOkay = true;
+        } catch (UnsatisfiedLinkError e) {
+            System.out.println("Jansi library not loaded. No colour on output");
+            //System.out.println(e);
+            console = System.out;
+            jansiOkay = false;
+        }
+    }
+    /**
+     * Private helper to get the console stream.
+     * @return jansi's console stream, or System.out if jansi can't be loaded
+     */
+    private static PrintStream console() {
+        testJansi();
+        return console;
+    }
+    @Override
+    public void gameStarted(ConnectFour game) {
+        showNewGame(game.getPosition());
+    }
+    @Override
+    public void movePlayed(ConnectFour game, int player, int column) {
+        showMove(game.getPosition(), player, column);
+    }
+    @Override
+    public void moveRejected(ConnectFour game, int player, int column, int reason) {
+        showRejected(reason);
+    }
+    @Override
+    public void gameOver(ConnectFour game, int winner) {
+        showResult(winner);
+    }
+    /**
+     * Print the start of a new game.
+     * @param board the empty board
+     */
+    public void showNewGame(Position board) {
+        if (incremental && jansiOkay) {
+            redraw(board, -1, 0);
+            return;
+        }
+        Glyphs g = glyphs(board.getGeometry());
+        length = 0;
+        put(g.newGame);
+        putBoard(g, board);
+        print();
+    }
+    /**
+     * Print a move and the board after it.
+     * @param board the board with the move played
+     * @param player the player that moved, 0 or 1
+     * @param column the column played, 1 to the board width
+     */
+    public void showMove(Position board, int player, int column) {
+        if (incremental && jansiOkay) {
+            if (drawn != null && board.getGeometry() == drawnGeometry
+                    && !resized()) {
+                repaint(board, player, column);
+            } else {
+                redraw(board, player, column);
+            }
+            return;
+        }
+        Glyphs g = glyphs(board.getGeometry());
+        length = 0;
+        put(g.moved[player]);
+        put(g.movedColumn[column]);
+        putBoard(g, board);
+        print();
+    }
+    /**
+     * Print why a move was rejected.
+     * @param reason {@link ConnectFour#NOT_YOUR_TURN},
+     * {@link ConnectFour#INVALID_COLUMN} or {@link ConnectFour#COLUMN_FULL}
+     */
+    public void showRejected(int reason) {
+        switch (reason) {
+            case ConnectFour.NOT_YOUR_TURN:
+                out.println("It is not your turn.");
+                break;
+            case ConnectFour.INVALID_COLUMN:
+                out.println("Not a valid move.");
+                break;
+            case ConnectFour.COLUMN_FULL:
+                out.println("That column is full.");
+                break;
+            default:
+                break;
+        }
+        out.flush();
+    }
+    /**
+     * Print the result of a game.
+     * @param winner 0 if player 1 won, 1 if player 2 won, -2 for a draw
+     */
+    public void showResult(int winner) {
+        if (winner == -2) {
+            out.println("GAME OVER!\nDrawn game.");
+        } else if (jansiOkay) {
+            out.println("GAME OVER!\nWinner is " +
+                    ansi().fg((winner == 0)?playerOneColour:playerTwoColour) +
+                    "Player " + (winner + 1) + ansi().fg(defaultColour));
+        } else {
+            out.println("GAME OVER!\nWinner is Player "
+                    + (winner + 1));
+        }
+        out.flush();
+    }
+    /**
+     * Display the board of a game by printing it out to the console.
+     * @param game the game to display
+     */
+    public void displayBoard(ConnectFour game) {
+        displayBoard(game.getPosition());
+    }
+    /**
+     * Display a board by printing it out to the console.
+     * @param board the board to display
+     */
+    public void displayBoard(Position board) {
+        if (incremental && jansiOkay) {
+            redraw(board, -1, 0);
+            return;
+        }
+        length = 0;
+        putBoard(glyphs(board.getGeometry()), board);
+        print();
+    }
+    /**
+     * Private helper to add a board to the frame being built. The board is
+     * the column numbers, a row of the board for each row from the top and
+     * the bottom edge, in colour if jansi is working.
+     * @param g the glyphs for the board
+     * @param board the board to add
+     */
+    private void putBoard(Glyphs g, Position board) {
+        int width = board.getGeometry().getWidth();
+        put(g.top);
+        for (int i = board.getGeometry().getHeight() - 1; i >= 0; i--) {
+            put(g.rowStart);
+            for (int j = 0; j < width; j++) {
+                put(g.cells[board.getCell(j, i) + 1]);
+            }
+            put(g.rowEnd);
+        }
+        put(g.bottom);
+    }
+    /**
+     * Private helper to clear the screen and draw the whole board at the top
+     * of it, with the status line under it, for incremental rendering.
+     * @param board the board to draw
+     * @param player the player that just moved, or -1 for a new game
+     * @param column the column played
+     */
+    private void redraw(Position board, int player, int column) {
+        Geometry geometry = board.getGeometry();
+        Glyphs g = glyphs(geometry);
+        length = 0;
+        put(g.clear);
+        putBoard(g, board);
+        putStatus(g, player, column);
+        put(g.newline);
+        print();
+        int width = geometry.getWidth();
+        drawn = new int[width * geometry.getHeight()];
+        for (int j = 0; j < width; j++) {
+            for (int i = 0; i < geometry.getHeight(); i++) {
+                drawn[i * width + j] = board.getCell(j, i);
+            }
+        }
+        drawnGeometry = geometry;
+        drawnSize = terminalSize();
+        sizeCheckedAt = System.nanoTime();
+    }
+    /**
+     * Private helper to repaint the cells that are different from the board
+     * on the screen, which is normally just the token played, and the status
+     * line. The cursor is left under the status line with the rest of the
+     * screen cleared, so the lines printed between moves never build up and
+     * scroll the board away.
+     * @param board the board with the move played
+     * @param player the player that moved
+     * @param column the column played
+     */
+    private void repaint(Position board, int player, int column) {
+        Glyphs g = glyphs(drawnGeometry);
+        int width = drawnGeometry.getWidth();
+        int height = drawnGeometry.getHeight();
+        length = 0;
+        for (int j = 0; j < width; j++) {
+            for (int i = 0; i < height; i++) {
+                int cell = board.getCell(j, i);
+                if (cell == drawn[i * width + j]) continue;
+                drawn[i * width + j] = cell;
+                put(g.cellCursor[i * width + j]);
+                put(g.tokens[cell + 1]);
+            }
+        }
+        put(g.statusCursor);
+        putStatus(g, player, column);
+        put(g.belowCursor);
+        print();
+    }
+    /**
+     * Private helper to add the status line under an incrementally drawn
+     * board, saying who moved where.
+     * @param g the glyphs for the board
+     * @param player the player that moved, or -1 for a new game
+     * @param column the column played
+     */
+    private void putStatus(Glyphs g, int player, int column) {
+        if (player < 0) {
+            put(g.newGameStatus);
+        } else {
+            put(g.status[player]);
+            put(g.statusColumn[column]);
+        }
+    }
+    /**
+     * Private helper to check whether the terminal has changed size since
+     * the board was drawn. The size is only read again once the last check
+     * is old enough, so most moves don't pay for the system call.
+     * @return true if the terminal is a different size
+     */
+    private boolean resized() {
+        long now = System.nanoTime();
+        if (now - sizeCheckedAt < SIZE_CHECK_NANOS) return false;
+        sizeCheckedAt = now;
+        return terminalSize() != drawnSize;
+    }
+    /**
+     * Private helper to read the size of the terminal, which needs the jansi
+     * native library.
+     * @return the rows in the top 16 bits and the columns in the bottom 16,
+     * or 0 if the size can't be read
+     */
+    private int terminalSize() {
+        if (!sizeReadable) return 0;
+        try {
+            if (winSize == null) winSize = new CLibrary.WinSize();
+            if (CLibrary.ioctl(CLibrary.STDOUT_FILENO, CLibrary.TIOCGWINSZ, winSize) == 0) {
+                return winSize.ws_row << 16 | (winSize.ws_col & 0xFFFF);
+            }
+        } catch (Throwable e) {
+            // no native library, so a resize can't be noticed
+        }
+        sizeReadable = false;
+        return 0;
+    }
+    /**
+     * Private helper to get the glyphs for a board, making them again if the
+     * board size, the colours or the colour support have changed.
+     * @param geometry the size of the board
+     * @return the glyphs
+     */
+    private Glyphs glyphs(Geometry geometry) {
+        if (glyphs == null || !glyphs.matches(geometry)) {
+            glyphs = new Glyphs(geometry);
+        }
+        return glyphs;
+    }
+    /**
+     * Private helper to add bytes to the frame being built.
+     * @param bytes the bytes
+     */
+    private void put(byte[] bytes) {
+        if (length + bytes.length > frame.length) {
+            frame = Arrays.copyOf(frame, Math.max(2 * frame.length, length + bytes.length));
+        }
+        System.arraycopy(bytes, 0, frame, length, bytes.length);
+        length += bytes.length;
+    }
+    /**
+     * Private helper to print the frame that has been built in one write,
+     * rather than a write for each piece of it.
+     */
+    private void print() {
+        out.write(frame, 0, length);
+        out.flush();
+    }
+    /**
+     * The encoded pieces that frames are made of, for one size of board and
+     * one set of colours. They are made with the same Ansi calls that once
+     * printed the board, so the output is the same.
+     */
+    private static final class Glyphs {
+        // what the glyphs were made for
+        private final Geometry geometry;
+        private final boolean colour;
+        private final boolean enabled;
+        private final Color board, number, playerOne, playerTwo, plain;
+        // the column numbers and top edge, the bottom edge, and the start
+        // and end of each row
+        final byte[] top, bottom, rowStart, rowEnd;
+        // an empty cell, Player 1's and Player 2's, each with the wall after
+        final byte[][] cells = new byte[3][];
+        // "NEW GAME" before a full board, then the line before it for each
+        // player's move and the rest of that line for each column
+        final byte[] newGame;
+        final byte[][] moved = new byte[2][];
+        final byte[][] movedColumn;
+        // for incremental drawing: clearing the screen, the cursor moves to
+        // each cell, the status line and below it, the tokens alone and the
+        // status line's text
+        final byte[] clear, statusCursor, belowCursor, newline, newGameStatus;
+        final byte[][] cellCursor;
+        final byte[][] tokens = new byte[3][];
+        final byte[][] status = new byte[2][];
+        final byte[][] statusColumn;
+        /**
+         * Constructor to encode the glyphs for a board with the colours as
+         * they are now.
+         * @param geometry the size of the board
+         */
+        Glyphs(Geometry geometry) {
+            this.geometry = geometry;
+            colour = jansiOkay;
+            enabled = Ansi.isEnabled();
+            board = boardColour;
+            number = numberColour;
+            playerOne = playerOneColour;
+            playerTwo = playerTwoColour;
+            plain = defaultColour;
+            int width = geometry.getWidth();
+            int height = geometry.getHeight();
+            Ansi out = ansi();
+            if (colour) {
+                out.bg(BLACK).newline().fg(numberColour);
+            }
+            // the column numbers and the top and bottom edges fit the width
+            out.a(" ");
+            for (int j = 1; j <= width; j++) {
+                out.a(' ').a(j);
+            }
+            if (colour) {
+                out.a("  ").newline().fg(boardColour);
+            } else {
+                out.newline();
+            }
+            top = bytes(line(out, '_', 2 * width + 3).newline());
+            out = line(ansi(), 'T', 2 * width + 3);
+            if (colour) out.fg(defaultColour);
+            bottom = bytes(out.newline());
+            rowStart = bytes(ansi().a("||"));
+            rowEnd = bytes(ansi().a('|').newline());
+            cells[0] = bytes(ansi().a("_|"));
+            if (colour) {
+                cells[1] = bytes(ansi().fg(playerOneColour).a('X').fg(boardColour).a('|'));
+                cells[2] = bytes(ansi().fg(playerTwoColour).a('O').fg(boardColour).a('|'));
+            } else {
+                cells[1] = bytes(ansi().a("X|"));
+                cells[2] = bytes(ansi().a("O|"));
+            }
+            newGame = bytes(ansi().a("NEW GAME").newline());
+            for (int player = 0; player < 2; player++) {
+                if (colour) {
+                    moved[player] = bytes(ansi().fg((player == 0)?playerOneColour:playerTwoColour)
+                            .newline().newline().a("Player ").a(player + 1).fg(defaultColour)
+                            .a(" placed their token in ")
+                            .fg(numberColour).a("column "));
+                } else {
+                    moved[player] = bytes(ansi().newline().newline().a("Player ").a(player + 1)
+                            .a(" placed their token in column "));
+                }
+            }
+            movedColumn = new byte[width + 1][];
+            for (int column = 1; column <= width; column++) {
+                out = ansi().a(column);
+                if (colour) out.fg(defaultColour);
+                movedColumn[column] = bytes(out.newline());
+            }
+            clear = bytes(ansi().cursor(1, 1).eraseScreen());
+            cellCursor = new byte[width * height][];
+            for (int i = 0; i < height; i++) {
+                for (int j = 0; j < width; j++) {
+                    cellCursor[i * width + j] = bytes(ansi().cursor(BOARD_TOP + height - 1 - i, 3 + 2 * j));
+                }
+            }
+            statusCursor = bytes(ansi().cursor(BOARD_TOP + height + 1, 1).eraseLine(Erase.ALL));
+            belowCursor = bytes(ansi().cursor(BOARD_TOP + height + 2, 1).eraseScreen(Erase.FORWARD));
+            newline = bytes(ansi().newline());
+            tokens[0] = bytes(ansi().fg(boardColour).a('_'));
+            tokens[1] = bytes(ansi().fg(playerOneColour).a('X'));
+            tokens[2] = bytes(ansi().fg(playerTwoColour).a('O'));
+            newGameStatus = bytes(ansi().fg(defaultColour).a("NEW GAME"));
+            for (int player = 0; player < 2; player++) {
+                status[player] = bytes(ansi().fg((player == 0)?playerOneColour:playerTwoColour)
+                        .a("Player ").a(player + 1).fg(defaultColour)
+                        .a(" placed their token in ")
+                        .fg(numberColour).a("column "));
+            }
+            statusColumn = new byte[width + 1][];
+            for (int column = 1; column <= width; column++) {
+                statusColumn[column] = bytes(ansi().a(column).fg(defaultColour));
+            }
+        }
+        /**
+         * Check if these glyphs are the right ones for a board now.
+         * @param geometry the size of the board
+         * @return true if they were made for this size and the colours and
+         * colour support haven't changed since
+         */
+        boolean matches(Geometry geometry) {
+            return geometry == this.geometry && colour == jansiOkay
+                    && enabled == Ansi.isEnabled() && board == boardColour
+                    && number == numberColour && playerOne == playerOneColour
+                    && playerTwo == playerTwoColour && plain == defaultColour;
+        }
+        /**
+         * Private helper to encode what has been built.
+         * @param out the text with its escape codes
+         * @return the bytes to print
+         */
+        private static byte[] bytes(Ansi out) {
+            return out.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        /**
+         * Private helper to add a line of one character.
+         * @param out the text being built
+         * @param c the character
+         * @param length the length of the line
+         * @return the text
+         */
+        private static Ansi line(Ansi out, char c, int length) {
+            for (int i = 0; i < length; i++) {
+                out.a(c);
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package connectfour;
+
+import java.time.Duration;
+
+/**
+ * A computer player for ConnectFour that searches the game tree.<br>
+ * The search is negamax with alpha-beta pruning. Moves are tried from the
+ * centre column outwards, with moves that make more threats tried first, and
+ * results are kept in a {@link TranspositionTable} so positions reached by
+ * different move orders are only searched once. Moves that let the opponent
+ * win straight away are never searched.<br>
+ * When choosing a move against the clock the search is iterative deepening:
+ * it searches one move ahead, then two, and so on until the time runs out,
+ * and plays the best move from the deepest search that finished. Each search
+ * tries the best moves found by the one before it first. Positions past the
+ * search depth are scored as a draw, so a win or loss is only reported when
+ * it is certain.<br>
+ * Scores are from the point of view of the player to move: positive if they
+ * can force a win, 0 for a draw and negative if they will lose. A win is
+ * worth more the sooner it happens, one point for each of the winner's
+ * tokens left unplayed.<br>
+ * An engine is not thread safe, each thread should use its own.
+ */
+public class Engine implements Strategy {
+    // table entry layout: score in bits 0-7, bound in bits 8-9, best move
+    // plus one in bits 10-13, depth searched in bits 14-20
+    private static final int UPPER = 1, LOWER = 2, EXACT = 3;
+    // check the clock every this many nodes plus one
+    private static final int CLOCK_MASK = 4095;
+    // thrown to abandon a search when the time is up
+    private static final TimeUp TIME_UP = new TimeUp();
+    private final TranspositionTable table;
+    // the board size, with the width and cell count copied out for speed
+    private final Geometry geometry;
+    private final int width;
+    private final int cells;
+    // the order to try the columns in, centre first
+    private final int[] columnOrder;
+    // move ordering scratch space for each depth so the search doesn't
+    // allocate
+    private final long[][] orders;
+    private final long timeLimit;
+    private long deadline;
+    private long nodes;
+    // depth and score of the last search that finished
+    private int depthReached;
+    private int score;
+    // score of the best move from the last searchRoot
+    private int rootScore;
+    // set by another thread to make a helper abandon its search
+    volatile boolean stopped;
+    // solved opening positions, or null if there is no book
+    private OpeningBook book;
+    // positions solved on earlier runs, or null if results are not kept
+    private PositionDatabase database;
+    /**
+     * Constructor for an engine with no time limit and a 64MB table.
+     */
+    public Engine() {
+        this(0);
+    }
+    /**
+     * Constructor for an engine with a 64MB table.
+     * @param timeLimit the most milliseconds to spend choosing a move, 0 for
+     * no limit
+     */
+    public Engine(long timeLimit) {
+        this(timeLimit, new TranspositionTable(22));
+    }
+    /**
+     * Constructor for an engine.
+     * @param timeLimit the most milliseconds to spend choosing a move, 0 for
+     * no limit
+     * @param table the transposition table to use
+     */
+    public Engine(long timeLimit, TranspositionTable table) {
+        this(Geometry.STANDARD, timeLimit, table, 0);
+    }
+    /**
+     * Constructor for an engine playing on any size of board.
+     * @param geometry the size of the board and the number in a row to win
+     * @param timeLimit the most milliseconds to spend choosing a move, 0 for
+     * no limit
+     * @param table the transposition table to use
+     */
+    public Engine(Geometry geometry, long timeLimit, TranspositionTable table) {
+        this(geometry, timeLimit, table, 0);
+    }
+    /**
+     * Constructor for an engine that tries its moves in a different order,
+     * used by {@link ParallelSearch} so that engines sharing a table don't
+     * all search the same part of the tree at once.
+     * @param geometry the size of the board and the number in a row to win
+     * @param timeLimit the most milliseconds to spend choosing a move, 0 for
+     * no limit
+     * @param table the transposition table to use
+     * @param variation 0 for the normal move order, otherwise how many places
+     * to rotate the centre first column order by
+     */
+    Engine(Geometry geometry, long timeLimit, TranspositionTable table, int variation) {
+        this.timeLimit = timeLimit * 1000000;
+        this.table = table;
+        this.geometry = geometry;
+        this.width = geometry.getWidth();
+        this.cells = geometry.getCells();
+        columnOrder = new int[width];
+        orders = new long[cells + 1][width];
+        for (int i = 0; i < width; i++) {
+            // 3, 2, 4, 1, 5, 0, 6 for the standard board
+            int j = (i + variation) % width;
+            columnOrder[i] = width / 2 + (1 - 2 * (j % 2)) * (j + 1) / 2;
+        }
+    }
+    /**
+     * Use an opening book to answer positions early in the game without
+     * searching.
+     * @param book the book, or null to always search
+     * @throws IllegalArgumentException if the book is for a different board
+     */
+    public void setOpeningBook(OpeningBook book) {
+        if (book != null && book.getGeometry() != geometry) {
+            throw new IllegalArgumentException("Opening book is for a "
+                    + book.getGeometry() + " board");
+        }
+        this.book = book;
+    }
+    /**
+     * Keep every position this engine solves in a database and answer 
+     * positions already in it without searching.
+     * @param database the database, or null to not keep results
+     * @throws IllegalArgumentException if the database is for a different
+     * board
+     */
+    public void setPositionDatabase(PositionDatabase database) {
+        if (database != null && database.getGeometry() != geometry) {
+            throw new IllegalArgumentException("Position database is for a "
+                    + database.getGeometry() + " board");
+        }
+        this.database = database;
+    }
+    /**
+     * Get the number of positions searched since the engine was created.
+     * @return the node count
+     */
+    public long getNodes() {
+        return nodes;
+    }
+    /**
+     * Get how many moves ahead the last {@link #bestMove(ConnectFour, Duration)}
+     * finished searching.
+     * @return the depth
+     */
+    public int getDepthReached() {
+        return depthReached;
+    }
+    /**
+     * Get the score of the move chosen by the last 
+     * {@link #bestMove(ConnectFour, Duration)}. It is only a win or a loss if
+     * the result is certain, otherwise it is 0.
+     * @return the score for the player that was to move
+     */
+    public int getScore() {
+        return score;
+    }
+    /**
+     * Choose the best move found within the time limit for the player
+     * whose turn it is.
+     * @param game the game to move in, must not be over
+     * @return the column to play, 1 to the board width
+     */
+    @Override
+    public int selectMove(ConnectFour game) {
+        return bestMove(game, Duration.ofNanos(timeLimit));
+    }
+    /**
+     * Choose the best move for the player whose turn it is, searching deeper
+     * until the time runs out.
+     * @param game the game to move in, must not be over
+     * @param budget how long to search for, zero for no limit
+     * @return the column to play, 1 to the board width
+     */
+    public int bestMove(ConnectFour game, Duration budget) {
+        return bestMove(game.getPosition(), game.getTurn(), budget);
+    }
+    /**
+     * Choose the best move on a board that is not part of a game, such as
+     * one a client builds from the moves its server sends.
+     * @param board the board, which must be the size this engine plays on
+     * @param turn the player to move, 0 or 1
+     * @param budget how long to search for, zero for no limit
+     * @return the column to play, 1 to the board width
+     */
+    public int bestMove(Position board, int turn, Duration budget) {
+        check(board);
+        long current = board.getBoard(turn);
+        long mask = current | board.getBoard(1 - turn);
+        return bestMove(current, mask, board.getMoveCount(), budget.toNanos()) + 1;
+    }
+    /**
+     * Work out the exact score of a game with no time limit.
+     * @param game the game to solve, must not be over
+     * @return the score for the player whose turn it is
+     */
+    public int solve(ConnectFour game) {
+        Position board = position(game);
+        int turn = game.getTurn();
+        long current = board.getBoard(turn);
+        return solve(current, current | board.getBoard(1 - turn), board.getMoveCount());
+    }
+    /**
+     * Get the size of board this engine plays on.
+     * @return the geometry
+     */
+    public Geometry getGeometry() {
+        return geometry;
+    }
+    /**
+     * Private helper to get the position from a game, checking it is played
+     * on the board this engine was made for.
+     * @param game the game
+     * @return the game's position
+     * @throws IllegalArgumentException if the game is on a different board
+     */
+    private Position position(ConnectFour game) {
+        return check(game.getPosition());
+    }
+    /**
+     * Private helper to check a board is the size this engine was made for.
+     * @param board the board
+     * @return the board
+     * @throws IllegalArgumentException if the board is a different size
+     */
+    private Position check(Position board) {
+        if (board.getGeometry() != geometry) {
+            throw new IllegalArgumentException("Engine is for a " + geometry
+                    + " board, not " + board.getGeometry());
+        }
+        return board;
+    }
+    /**
+     * Work out the exact score of a position with no time limit.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @param moves the number of tokens on the board
+     * @return the score for the player to move
+     */
+    public int solve(long current, long mask, int moves) {
+        if (book != null) {
+            int entry = book.probe(current, mask);
+            if (entry != OpeningBook.NOT_FOUND) return OpeningBook.scoreOf(entry);
+        }
+        long saved = (database != null) ? database.get(Position.hash(current, mask)) : 0;
+        if (saved != 0) return (int) (saved >>> 8) - 128;
+        if (canWinNext(current, mask)) {
+            return (cells + 1 - moves) / 2;
+        }
+        deadline = Long.MAX_VALUE;
+        int min = -(cells - moves) / 2;
+        int max = (cells + 1 - moves) / 2;
+        // narrow the score down with null window searches, which prune far
+        // more than a single search with the full window
+        while (min < max) {
+            int med = min + (max - min) / 2;
+            if (med <= 0 && min / 2 < med) med = min / 2;
+            else if (med >= 0 && max / 2 > med) med = max / 2;
+            int r = negamax(current, mask, moves, med, med + 1, cells);
+            if (r <= med) max = r;
+            else min = r;
+        }
+        // the best move isn't known from a solve
+        if (database != null && !database.isFull()) {
+            database.put(Position.hash(current, mask), stored(min, -1));
+        }
+        return min;
+    }
+    /**
+     * Solve a position as a helper for another engine sharing the same
+     * table, giving up as soon as {@link #stopped} is set.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @param moves the number of tokens on the board
+     */
+    void help(long current, long mask, int moves) {
+        try {
+            solve(current, mask, moves);
+        } catch (TimeUp e) {
+            // stopped by the main engine
+        }
+    }
+    /**
+     * Search a position deeper and deeper as a helper for another engine
+     * sharing the same table, until {@link #stopped} is set.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @param moves the number of tokens on the board
+     * @param firstDepth the depth to start at, so that helpers are not all
+     * searching the same depth at once
+     */
+    void help(long current, long mask, int moves, int firstDepth) {
+        long safe = nonLosingMoves(current, mask);
+        if (safe == 0 || canWinNext(current, mask)) return;
+        deadline = Long.MAX_VALUE;
+        int best = -1;
+        try {
+            for (int depth = firstDepth; depth <= cells - moves; depth++) {
+                best = searchRoot(current, mask, moves, safe, depth, best);
+            }
+        } catch (TimeUp e) {
+            // stopped by the main engine
+        }
+    }
+    /**
+     * Find the best move with iterative deepening, keeping the best move
+     * from the deepest search finished before the time runs out.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @param moves the number of tokens on the board
+     * @param budget the nanoseconds to search for, 0 for no limit
+     * @return the best column found, 0 based
+     */
+    int bestMove(long current, long mask, int moves, long budget) {
+        if (book != null) {
+            int entry = book.probe(current, mask);
+            if (entry != OpeningBook.NOT_FOUND) {
+                depthReached = cells - moves;
+                score = OpeningBook.scoreOf(entry);
+                return OpeningBook.moveOf(entry);
+            }
+        }
+        long key = Position.hash(current, mask);
+        long saved = (database != null) ? database.get(key) : 0;
+        if ((saved & 0xFF) != 0) {
+            depthReached = cells - moves;
+            score = (int) (saved >>> 8) - 128;
+            return (int) (saved & 0xFF) - 1;
+        }
+        depthReached = 1;
+        score = (cells + 1 - moves) / 2;
+        long playable = geometry.playableCells(mask);
+        // take a win straight away
+        long wins = playable & geometry.winningCells(current, mask);
+        long safe = nonLosingMoves(current, mask);
+        int best = -1;
+        for (int column : columnOrder) {
+            long bits = geometry.columnMask(column);
+            if ((wins & bits) != 0) return column;
+            if (best == -1 && (safe & bits) != 0) best = column;
+        }
+        // every move loses so play the first legal one
+        score = -(cells - moves) / 2;
+        if (best == -1) {
+            for (int column : columnOrder) {
+                if ((playable & geometry.columnMask(column)) != 0) return column;
+            }
+        }
+        score = 0;
+        deadline = (budget > 0) ? System.nanoTime() + budget : Long.MAX_VALUE;
+        // with no time limit go straight to searching to the end of the game
+        int depth = (budget > 0) ? 1 : cells - moves;
+        try {
+            for (; depth <= cells - moves; depth++) {
+                best = searchRoot(current, mask, moves, safe, depth, best);
+                depthReached = depth;
+                score = rootScore;
+                // a certain win or loss won't change with a deeper search
+                if (score != 0) break;
+            }
+        } catch (TimeUp e) {
+            // out of time, go with the deepest search that finished
+        }
+        // only keep results that are certain
+        if (database != null && !database.isFull()
+                && (score != 0 || depthReached == cells - moves)) {
+            database.put(key, stored(score, best));
+        }
+        return best;
+    }
+    /**
+     * Private helper to search each move from the root position to a fixed
+     * depth. The score of the best move is left in rootScore.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @param moves the number of tokens on the board
+     * @param safe the moves that don't lose straight away
+     * @param depth how many moves ahead to search
+     * @param first the column to try first, the best from the last search, or
+     * -1 for none
+     * @return the best column, 0 based
+     */
+    private int searchRoot(long current, long mask, int moves, long safe, int depth, int first) {
+        int alpha = -(cells - moves) / 2;
+        int beta = (cells + 1 - moves) / 2;
+        int best = -1;
+        for (int i = -1; i < width; i++) {
+            int column = (i < 0) ? first : columnOrder[i];
+            if (column < 0 || (i >= 0 && column == first)) continue;
+            long move = safe & geometry.columnMask(column);
+            if (move == 0) continue;
+            int value = -negamax(current ^ mask, mask | move, moves + 1, -beta, -alpha, depth - 1);
+            if (best == -1 || value > alpha) {
+                alpha = value;
+                best = column;
+            }
+        }
+        rootScore = alpha;
+        return best;
+    }
+    /**
+     * Private helper to check if the player to move can win with one token.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @return true if there is a winning move
+     */
+    private boolean canWinNext(long current, long mask) {
+        return (geometry.winningCells(current, mask) & geometry.playableCells(mask)) != 0;
+    }
+    /**
+     * Private helper to get the moves that don't let the opponent win on
+     * their next move. If the opponent is threatening to win the only move
+     * returned is the one that blocks them.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @return the cells that are safe to play, 0 if every move loses
+     */
+    private long nonLosingMoves(long current, long mask) {
+        long playable = geometry.playableCells(mask);
+        long opponentWins = geometry.winningCells(current ^ mask, mask);
+        long forced = playable & opponentWins;
+        if (forced != 0) {
+            // more than one threat can't all be blocked
+            if ((forced & (forced - 1)) != 0) return 0;
+            playable = forced;
+        }
+        // don't play directly under a cell the opponent wants
+        return playable & ~geometry.below(opponentWins);
+    }
+    /**
+     * Private helper that does the recursive alpha-beta search. The player
+     * to move must not be able to win straight away.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @param moves the number of tokens on the board
+     * @param alpha the score the player to move already has
+     * @param beta the score the opponent already has
+     * @param depth how many more moves to search, positions past this are
+     * scored as a draw
+     * @return the score of the position, exact if it is between alpha and
+     * beta, otherwise a bound on the side of the window it fell
+     */
+    private int negamax(long current, long mask, int moves, int alpha, int beta, int depth) {
+        if ((++nodes & CLOCK_MASK) == 0
+                && (stopped || System.nanoTime() - deadline > 0)) {
+            throw TIME_UP;
+        }
+        long next = nonLosingMoves(current, mask);
+        if (next == 0) return -(cells - moves) / 2;
+        // two moves or less left and neither can win
+        if (moves >= cells - 2) return 0;
+        // reached the search depth without a result
+        if (depth <= 0) return 0;
+        // searching past the end of the game is the same as to the end
+        if (depth > cells - moves) depth = cells - moves;
+        // the opponent can't win on their next move so this is the worst
+        int min = -(cells - 2 - moves) / 2;
+        if (alpha < min) {
+            alpha = min;
+            if (alpha >= beta) return alpha;
+        }
+        // we can't win with this move so this is the best
+        int max = (cells - 1 - moves) / 2;
+        if (beta > max) {
+            beta = max;
+            if (alpha >= beta) return beta;
+        }
+        long key = Position.hash(current, mask);
+        long entry = table.get(key);
+        int hashMove = -1;
+        if (entry != 0) {
+            // the best move is worth trying first even from a shallower search
+            hashMove = (int) (entry >>> 10 & 15) - 1;
+            if ((int) (entry >>> 14 & 127) >= depth) {
+                int score = (int) (entry & 0xFF) - 128;
+                int bound = (int) (entry >>> 8) & 3;
+                if (bound == EXACT) return score;
+                if (bound == UPPER && score < beta) {
+                    beta = score;
+                    if (alpha >= beta) return beta;
+                } else if (bound == LOWER && score > alpha) {
+                    alpha = score;
+                    if (alpha >= beta) return alpha;
+                }
+            }
+        }
+        // order the moves, the best move from the table first and then the
+        // moves making the most threats, ties going to the most central
+        long[] order = orders[moves];
+        int count = 0;
+        for (int i = width - 1; i >= 0; i--) {
+            int column = columnOrder[i];
+            long move = next & geometry.columnMask(column);
+            if (move == 0) continue;
+            int rank = (column == hashMove) ? 64
+                    : Long.bitCount(geometry.winningCells(current | move, mask));
+            // pack the rank above the column so sorting sorts by rank
+            long packed = ((long) rank << 8) | column;
+            int j = count++;
+            while (j > 0 && order[j - 1] >>> 8 <= packed >>> 8) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = packed;
+        }
+        int originalAlpha = alpha;
+        int bestColumn = -1;
+        for (int i = 0; i < count; i++) {
+            int column = (int) (order[i] & 0xFF);
+            long move = next & geometry.columnMask(column);
+            int score = -negamax(current ^ mask, mask | move, moves + 1, -beta, -alpha, depth - 1);
+            if (score >= beta) {
+                table.put(key, entry(score, LOWER, column, depth));
+                return score;
+            }
+            if (score > alpha) {
+                alpha = score;
+                bestColumn = column;
+            }
+        }
+        if (alpha > originalAlpha) {
+            table.put(key, entry(alpha, EXACT, bestColumn, depth));
+        } else {
+            table.put(key, entry(alpha, UPPER, hashMove, depth));
+        }
+        return alpha;
+    }
+    /**
+     * Private helper to pack a result for the position database.
+     * @param score the exact score
+     * @param column the best move, or -1 if not known
+     * @return the result, which is never 0
+     */
+    private static long stored(int score, int column) {
+        return ((score + 128) << 8) | (column + 1);
+    }
+    /**
+     * Private helper to pack a table entry.
+     * @param score the score
+     * @param bound UPPER, LOWER or EXACT
+     * @param column the best move, or -1 if not known
+     * @param depth the depth searched
+     * @return the entry
+     */
+    private static long entry(int score, int bound, int column, int depth) {
+        return (score + 128) | (bound << 8) | ((column + 1) << 10) | (depth << 14);
+    }
+    /**
+     * Thrown inside the search when the time limit is reached. It has no
+     * stack trace so throwing it is cheap.
+     */
+    private static class TimeUp extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        TimeUp() {
+            super(null, null, false, false);
+        }
+    }
+}
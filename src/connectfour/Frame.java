@@ -0,0 +1,154 @@
+package connectfour;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message in the binary protocol spoken between the ConnectFourServer and
+ * the ConnectFourClient.<br>
+ * Every frame starts with one byte giving the length of the rest of the
+ * frame, then the opcode, the session id in four bytes and the sequence
+ * number in two, all big endian, then the payload. A move is nine bytes:
+ * <pre>
+ *   length | opcode | session id  | sequence | column
+ *   08     | 02     | 00 00 00 2a | 00 07    | 04
+ * </pre>
+ * The server runs the game: it checks every move and sends both clients a
+ * STATE frame for each move played and a RESULT frame at the end, so a
+ * client only has to draw what it is told.<br>
+ * The server numbers the frames of a session in order and the client
+ * numbers its own. Clients send the id of their session, or 0 before they
+ * are in one.<br>
+ * A Frame object is reused: {@link #read(ByteBuffer)} decodes the next
+ * frame into it straight from the buffer, so reading a message allocates
+ * nothing.
+ * @author Stephen Whitely P308730
+ */
+public final class Frame {
+    /** Start of a game, payload 1 if the receiver moves first else 0, then
+     * the width, height and connect length of the board. */
+    public static final int NEW_GAME = 1;
+    /** A move by the client, payload the column from 1 to the board width. */
+    public static final int MOVE = 2;
+    /** End of a game, payload {@link #LOST}, {@link #WON} or {@link #DRAW}. */
+    public static final int RESULT = 3;
+    /** No payload, answered with a PING with the same sequence number. */
+    public static final int PING = 4;
+    /** A frame was refused, payload the reason: a move rejection reason from
+     * {@link ConnectFour} or {@link #BAD_FRAME}. */
+    public static final int ERROR = 5;
+    /** A move played, payload 1 if the receiver played it else 0, the column
+     * from 1, the row from 0 at the bottom, 1 if the receiver moves next else
+     * 0, then two bytes with bit c - 1 set for each column c that can still
+     * be played, 0 once the game is over. */
+    public static final int STATE = 6;
+    /** The first frame from a client, asking for an opponent, payload the
+     * client's rating in two bytes. */
+    public static final int JOIN = 7;
+    /** Asks to watch the game with the session id in the header, or any game
+     * for 0. No payload. The watcher is sent the game so far, then every
+     * frame Player 2 is sent. */
+    public static final int WATCH = 8;
+    /** From the server when a session starts, payload the four byte key the
+     * client needs to come back to its seat. From a client that lost its
+     * connection, with the session id in the header, payload the key and the
+     * sequence number of the last frame it had in two bytes. The server
+     * sends the frames it missed and then the key again. */
+    public static final int RESUME = 9;
+    /** Results, from the point of view of the receiver. */
+    public static final int LOST = 0, WON = 1, DRAW = 2;
+    /** Error for a frame the receiver doesn't understand. */
+    public static final int BAD_FRAME = 16;
+    /** Error for a WATCH of a game that isn't being played, or a RESUME of a
+     * seat that isn't waiting for its client. */
+    public static final int NO_SUCH_GAME = 17;
+    // bytes after the length byte before the payload
+    private static final int HEADER = 7;
+    /** The longest a frame can be, including its length byte. */
+    public static final int MAX_LENGTH = 256;
+    private int opcode;
+    private int sessionId;
+    private int sequence;
+    private final byte[] payload = new byte[MAX_LENGTH - 1 - HEADER];
+    private int payloadLength;
+    /**
+     * Decode the next frame from a buffer if all of it has arrived. The
+     * buffer is left just after the frame, or unchanged if it is not all
+     * there yet.
+     * @param buffer the buffer, ready to be read from
+     * @return true if a frame was read, false if more bytes are needed
+     * @throws ProtocolException if the bytes can't be a frame
+     */
+    public boolean read(ByteBuffer buffer) throws ProtocolException {
+        if (!buffer.hasRemaining()) return false;
+        int length = buffer.get(buffer.position()) & 0xFF;
+        if (length < HEADER) throw new ProtocolException("Frame too short: " + length);
+        if (buffer.remaining() < 1 + length) return false;
+        buffer.get();
+        opcode = buffer.get() & 0xFF;
+        sessionId = buffer.getInt();
+        sequence = buffer.getShort() & 0xFFFF;
+        payloadLength = length - HEADER;
+        buffer.get(payload, 0, payloadLength);
+        return true;
+    }
+    /**
+     * Get the opcode of the last frame read.
+     * @return the opcode
+     */
+    public int getOpcode() {
+        return opcode;
+    }
+    /**
+     * Get the session id of the last frame read.
+     * @return the session id
+     */
+    public int getSessionId() {
+        return sessionId;
+    }
+    /**
+     * Get the sequence number of the last frame read.
+     * @return the sequence number from 0 to 65535
+     */
+    public int getSequence() {
+        return sequence;
+    }
+    /**
+     * Get the length of the payload of the last frame read.
+     * @return the number of payload bytes
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+    /**
+     * Get a byte of the payload of the last frame read.
+     * @param index the index in the payload
+     * @return the byte from 0 to 255
+     */
+    public int getPayload(int index) {
+        if (index >= payloadLength) throw new IndexOutOfBoundsException("Payload byte " + index);
+        return payload[index] & 0xFF;
+    }
+    /**
+     * Encode a frame.
+     * @param opcode the opcode
+     * @param sessionId the session id
+     * @param sequence the sequence number, only the low 16 bits are sent
+     * @param payload the payload bytes, each from 0 to 255
+     * @return the frame, starting with its length byte
+     */
+    public static byte[] encode(int opcode, int sessionId, int sequence, int... payload) {
+        if (payload.length > MAX_LENGTH - 1 - HEADER) {
+            throw new IllegalArgumentException("Payload too long: " + payload.length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(1 + HEADER + payload.length);
+        frame.put((byte) (HEADER + payload.length));
+        frame.put((byte) opcode);
+        frame.putInt(sessionId);
+        frame.putShort((short) sequence);
+        for (int b : payload) {
+            frame.put((byte) b);
+        }
+        return frame.array();
+    }
+}
@@ -0,0 +1,42 @@
+package connectfour;
+
+/**
+ * A listener that is told about the events of a ConnectFour game.<br>
+ * ConnectFour itself does no input or output. Anything that wants to show
+ * or send the game somewhere (the console, a socket, a log) implements this
+ * interface and subscribes to the game with 
+ * {@link ConnectFour#addGameListener(GameListener)}.<br>
+ * The events are called on the thread that changed the game.
+ */
+public interface GameListener {
+    /**
+     * Called when a new game has been started and the board is empty.
+     * @param game the game that started
+     */
+    void gameStarted(ConnectFour game);
+    /**
+     * Called after a move has been played and the turn has passed on.
+     * If the move ended the game {@link #gameOver(ConnectFour, int)} is
+     * called straight after this.
+     * @param game the game the move was played in
+     * @param player the player that moved, 0 or 1
+     * @param column the column played, 1 to the board width
+     */
+    void movePlayed(ConnectFour game, int player, int column);
+    /**
+     * Called when a move is rejected and the game is left unchanged.
+     * @param game the game the move was tried in
+     * @param player the player that tried to move
+     * @param column the column that was tried
+     * @param reason why the move was rejected, one of 
+     * {@link ConnectFour#NOT_YOUR_TURN}, {@link ConnectFour#INVALID_COLUMN} or
+     * {@link ConnectFour#COLUMN_FULL}
+     */
+    void moveRejected(ConnectFour game, int player, int column, int reason);
+    /**
+     * Called when a move ends the game.
+     * @param game the game that ended
+     * @param winner 0 if player 1 won, 1 if player 2 won, -2 for a draw
+     */
+    void gameOver(ConnectFour game, int winner);
+}
@@ -0,0 +1,450 @@
+package connectfour;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One game hosted by the {@link ConnectFourServer} between two seats, each
+ * filled by a client connection or the computer.<br>
+ * Every client plays as if it were Player 2 and its opponent Player 1, the
+ * same as the original one game server. The session turns the real game
+ * round for the client in seat 0 so that two clients can play each other
+ * without knowing it. When a game ends the next one starts straight away,
+ * until one of the clients leaves.<br>
+ * The session's game is the only real copy of the board. Binary clients are
+ * sent every move, their own included, and the result, so they only have to
+ * draw what they are told.<br>
+ * Any number of binary clients can watch, seeing the game as Player 2 does.
+ * Each message is encoded once and the same frame goes to every watcher. A
+ * watcher that falls too far behind is skipped until it has caught up, then
+ * sent the whole board as it is now, so a slow watcher never holds up the
+ * players or fills the server's memory.<br>
+ * A binary client that loses its connection can come back to its seat with
+ * the key it was sent when the session started. The moves of the game are
+ * kept in order with their sequence numbers, so it is sent only the
+ * messages it missed.<br>
+ * A session is a small state machine. Work for it is handed to
+ * {@link #execute(Runnable)}, which runs one task at a time on the worker
+ * threads in the order it was given, so a move is always played before the
+ * client that sent it is seen to leave. The clients are flushed when the
+ * tasks run out, so everything a run of tasks sends one client goes out in
+ * one write.
+ */
+class GameSession implements GameListener {
+    /** The states a session moves through. */
+    enum State {
+        /** A game is being played. */
+        PLAYING,
+        /** The last move ended the game and the next has not started. */
+        GAME_OVER,
+        /** A client left, the session ignores anything else it is sent. */
+        CLOSED
+    }
+    private final long id;
+    private final ConnectFour game;
+    // the connection playing as each player, null for the computer
+    private final Connection[] seats;
+    // chooses moves for empty seats, must be safe to call from any thread
+    private final Strategy computer;
+    private final Executor executor;
+    // work waiting to run, guarded by tasks
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean scheduled;
+    // how many bytes a watcher can fall behind before it is skipped
+    private static final int WATCHER_BACKLOG = 8192;
+    // the clients watching the game
+    private final ArrayList<Watcher> watchers = new ArrayList<>();
+    // the columns played so far this game, and who went first, to show
+    // the board to a watcher that joins or falls behind or a client that
+    // comes back. Move i was message gameSequence + 1 + i.
+    private final int[] moves;
+    private int moveCount;
+    private int gameFirst;
+    private int gameSequence;
+    // the end of the last game, for a client that missed it
+    private int lastWinner;
+    private int lastResultSequence;
+    // the key each client gives to take its seat back
+    private final int[] keys = new int[2];
+    private State state = State.GAME_OVER;
+    // the player to move first in the next game, which alternates
+    private int firstTurn;
+    // the number of the last message sent to the clients
+    private int sequence;
+    // the sequence number of the client message being handled
+    private int replyTo;
+    /**
+     * A client watching the game.
+     */
+    private static class Watcher {
+        final Connection connection;
+        // true while frames are being skipped
+        boolean behind;
+        Watcher(Connection connection) {
+            this.connection = connection;
+        }
+    }
+    /**
+     * Encodes one message for each client's protocol and seat.
+     */
+    private interface Message {
+        /**
+         * Encode the message.
+         * @param protocol the protocol to encode it in
+         * @param seat the seat of the client it is for
+         * @return the message, or null if the protocol can't say it
+         */
+        byte[] encode(Protocol protocol, int seat);
+    }
+    /**
+     * Constructor for a session. The game doesn't start until
+     * {@link #start()} is called.
+     * @param id the number of the session, sent to binary clients
+     * @param geometry the size of the board
+     * @param playerOne the connection for Player 1, or null for the computer
+     * @param playerTwo the connection for Player 2, or null for the computer
+     * @param computer the strategy for any seat without a connection
+     * @param executor the threads to run the session's work on
+     * @param firstTurn the player to move first in the first game, after
+     * which the players take turns to go first
+     */
+    GameSession(long id, Geometry geometry, Connection playerOne, Connection playerTwo,
+            Strategy computer, Executor executor, int firstTurn) {
+        this.id = id;
+        this.firstTurn = firstTurn;
+        this.executor = executor;
+        this.seats = new Connection[] {playerOne, playerTwo};
+        this.computer = computer;
+        this.game = new ConnectFour(geometry, 0, null);
+        this.moves = new int[geometry.getCells()];
+        for (int i = 0; i < 2; i++) {
+            keys[i] = ThreadLocalRandom.current().nextInt();
+        }
+        game.addGameListener(this);
+        for (Connection seat : seats) {
+            if (seat != null) seat.setSession(this);
+        }
+    }
+    /**
+     * Get the number of the session.
+     * @return the session id
+     */
+    long getId() {
+        return id;
+    }
+    /**
+     * Get the connections in the session's seats.
+     * @return the connection for each player, null for the computer
+     */
+    Connection[] getSeats() {
+        return seats.clone();
+    }
+    /**
+     * Get the state of the session.
+     * @return the state
+     */
+    synchronized State getState() {
+        return state;
+    }
+    /**
+     * Run a task for this session after every task given before it. Tasks
+     * for one session never run at the same time.
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (scheduled) return;
+            scheduled = true;
+        }
+        executor.execute(this::runTasks);
+    }
+    /**
+     * Private helper to run the waiting tasks until there are none left,
+     * then flush everything they sent, so that all the messages for one
+     * client go in one write.
+     */
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+            }
+            if (task != null) {
+                task.run();
+                continue;
+            }
+            // still scheduled, so no other thread is running tasks
+            flush();
+            synchronized (tasks) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+        }
+    }
+    /**
+     * Private helper to flush the connections of the players and watchers.
+     */
+    private void flush() {
+        for (Connection seat : seats) {
+            if (seat != null) seat.flush();
+        }
+        for (Watcher watcher : watchers) {
+            watcher.connection.flush();
+        }
+    }
+    /**
+     * Tell the clients the board size and start the first game. If the
+     * computer moves first it does so before this returns.
+     */
+    synchronized void start() {
+        if (state == State.CLOSED) return;
+        for (int i = 0; i < 2; i++) {
+            if (seats[i] != null) {
+                send(seats[i], seats[i].getProtocol().greeting(game.getGeometry()));
+                send(seats[i], seats[i].getProtocol().resumeKey((int) id, sequence, keys[i]));
+            }
+        }
+        nextGame();
+    }
+    /**
+     * Handle a move sent by one of the clients. A move that is not legal for
+     * that client is refused if its protocol can say so and otherwise
+     * ignored, as the original server did.
+     * @param from the connection the move came from
+     * @param column the column
+     * @param sequence the sequence number of the client's message
+     */
+    synchronized void receive(Connection from, int column, int sequence) {
+        if (state != State.PLAYING) return;
+        int player = (from == seats[0]) ? 0 : (from == seats[1]) ? 1 : -1;
+        if (player < 0) return;
+        replyTo = sequence;
+        if (game.playMove(player, column)) computerMoves();
+        if (state == State.GAME_OVER) nextGame();
+    }
+    /**
+     * Add a client to the watchers and send it the board so far.
+     * @param watcher the client
+     * @return false if the session has closed
+     */
+    synchronized boolean watch(Connection watcher) {
+        if (state == State.CLOSED) return false;
+        watcher.setSession(this);
+        watchers.add(new Watcher(watcher));
+        // a watcher that closed before it was added was not seen to leave
+        if (watcher.isClosed()) {
+            watchers.remove(watchers.size() - 1);
+            return true;
+        }
+        replay(watcher, 1, -1);
+        return true;
+    }
+    /**
+     * Keep the seat of a client that lost its connection, so that it can
+     * come back with {@link #resume(Connection, int, int)}. Only binary
+     * clients can come back.
+     * @param from the connection that closed
+     * @return true if the seat is kept, false if the client has to leave
+     */
+    synchronized boolean hold(Connection from) {
+        if (state == State.CLOSED || from.getProtocol() != Protocol.BINARY) return false;
+        return from == seats[0] || from == seats[1];
+    }
+    /**
+     * Put a client back in the seat it lost its connection from and send
+     * it the messages it missed, then its key again to show that it is up
+     * to date.
+     * @param connection the client's new connection
+     * @param key the key of the seat
+     * @param last the sequence number of the last message the client had
+     * @return false if there is no empty seat with that key
+     */
+    synchronized boolean resume(Connection connection, int key, int last) {
+        if (state == State.CLOSED) return false;
+        for (int i = 0; i < 2; i++) {
+            if (seats[i] != null && seats[i].isClosed() && keys[i] == key) {
+                seats[i] = connection;
+                connection.setSession(this);
+                replay(connection, i, last);
+                send(connection, Protocol.BINARY.resumeKey((int) id, sequence, key));
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Handle a client leaving. When a player leaves the session is closed
+     * and everyone else is disconnected, as there is no one left to play.
+     * A watcher that leaves is just forgotten.
+     * @param from the connection that closed
+     * @return true if this closed the session, false if it was already
+     * closed or a watcher left
+     */
+    boolean leave(Connection from) {
+        synchronized (this) {
+            if (from != seats[0] && from != seats[1]) {
+                watchers.removeIf(watcher -> watcher.connection == from);
+                return false;
+            }
+            if (state == State.CLOSED) return false;
+            state = State.CLOSED;
+        }
+        for (Connection seat : seats) {
+            if (seat != null && seat != from) seat.close();
+        }
+        for (Watcher watcher : watchers) {
+            watcher.connection.close();
+        }
+        return true;
+    }
+    /**
+     * Private helper to start a new game and let the computer move if it
+     * goes first.
+     */
+    private void nextGame() {
+        state = State.PLAYING;
+        game.startNewGame(firstTurn);
+        firstTurn = 1 - firstTurn;
+        computerMoves();
+    }
+    /**
+     * Private helper to play the computer's moves while it is the
+     * computer's turn.
+     */
+    private void computerMoves() {
+        while (state == State.PLAYING && seats[game.getTurn()] == null) {
+            game.playMove(game.getTurn(), computer.selectMove(game));
+        }
+    }
+    /**
+     * Private helper to send a message to a seat, if there is a client in
+     * it and the message could be encoded.
+     * @param seat the connection, or null for the computer
+     * @param message the message, or null
+     */
+    private static void send(Connection seat, byte[] message) {
+        if (seat != null && message != null) seat.send(message);
+    }
+    /**
+     * Private helper to send a message to both players and the watchers.
+     * The watchers see what Player 2 sees, so the frame for a binary client
+     * in seat 1 is encoded once and shared with all of them.
+     * @param message the message
+     */
+    private void publish(Message message) {
+        byte[] shared = null;
+        for (int i = 0; i < 2; i++) {
+            Connection seat = seats[i];
+            if (seat == null) continue;
+            if (i == 1 && seat.getProtocol() == Protocol.BINARY) {
+                shared = message.encode(Protocol.BINARY, 1);
+                send(seat, shared);
+            } else {
+                send(seat, message.encode(seat.getProtocol(), i));
+            }
+        }
+        if (watchers.isEmpty()) return;
+        if (shared == null) shared = message.encode(Protocol.BINARY, 1);
+        for (Watcher watcher : watchers) {
+            if (watcher.behind) {
+                // skip to the latest board once it has caught up
+                if (watcher.connection.getBacklog() == 0) {
+                    watcher.behind = false;
+                    replay(watcher.connection, 1, -1);
+                }
+            } else if (watcher.connection.getBacklog() > WATCHER_BACKLOG) {
+                watcher.behind = true;
+            } else {
+                watcher.connection.send(shared);
+            }
+        }
+    }
+    /**
+     * Private helper to send a binary client the messages of this game it
+     * missed, with the numbers they were first sent with. A client that
+     * missed the start of the game is sent all of it, after the end of the
+     * last game if it missed that too.
+     * @param to the client
+     * @param seat the seat it sees the game from
+     * @param after the sequence number of the last message it had, or -1
+     * to send the whole game
+     */
+    private void replay(Connection to, int seat, int after) {
+        int sent = sequence - gameSequence + 1;
+        int missing = (after < 0) ? sent : (sequence - after) & 0xFFFF;
+        if (missing > sent) {
+            if (after >= 0 && lastResultSequence != 0) {
+                to.send(Protocol.BINARY.result((int) id, lastResultSequence, result(lastWinner, seat)));
+            }
+            missing = sent;
+        }
+        int from = sequence - missing + 1;
+        Geometry geometry = game.getGeometry();
+        if (from <= gameSequence) {
+            to.send(Protocol.BINARY.newGame((int) id, gameSequence, geometry, gameFirst == seat));
+        }
+        Position board = new Position(geometry);
+        int player = gameFirst;
+        for (int i = 0; i < moveCount; i++) {
+            board.play(player, moves[i] - 1);
+            if (gameSequence + 1 + i >= from) {
+                boolean over = i == moveCount - 1 && game.isGameOver();
+                to.send(Protocol.BINARY.movePlayed((int) id, gameSequence + 1 + i, player == seat,
+                        moves[i], board.getHeight(moves[i] - 1) - 1, !over && player != seat,
+                        over ? 0 : board.legalMoves()));
+            }
+            player = 1 - player;
+        }
+        if (state == State.GAME_OVER) {
+            to.send(Protocol.BINARY.result((int) id, sequence, result(game.getWinner(), seat)));
+        }
+    }
+    /**
+     * Private helper to give the result of a game for one seat.
+     * @param winner the winner, or less than 0 for a draw
+     * @param seat the seat
+     * @return {@link Frame#WON}, {@link Frame#LOST} or {@link Frame#DRAW}
+     */
+    private static int result(int winner, int seat) {
+        return (winner == seat) ? Frame.WON : (winner < 0) ? Frame.DRAW : Frame.LOST;
+    }
+    @Override
+    public void gameStarted(ConnectFour game) {
+        moveCount = 0;
+        gameFirst = game.getTurn();
+        // each client is told whether it moves first as Player 2 would be
+        int number = ++sequence;
+        gameSequence = number;
+        publish((protocol, seat) -> protocol.newGame((int) id, number, game.getGeometry(),
+                game.getTurn() == seat));
+    }
+    @Override
+    public void movePlayed(ConnectFour game, int player, int column) {
+        moves[moveCount++] = column;
+        // the game is the only copy of the board, the clients draw from this
+        Position board = game.getPosition();
+        int row = board.getHeight(column - 1) - 1;
+        int legal = game.isGameOver() ? 0 : board.legalMoves();
+        int number = ++sequence;
+        publish((protocol, seat) -> protocol.movePlayed((int) id, number, player == seat,
+                column, row, game.getTurn() == seat, legal));
+    }
+    @Override
+    public void moveRejected(ConnectFour game, int player, int column, int reason) {
+        Connection seat = seats[player];
+        if (seat != null) send(seat, seat.getProtocol().error((int) id, replyTo, reason));
+    }
+    @Override
+    public void gameOver(ConnectFour game, int winner) {
+        state = State.GAME_OVER;
+        int number = ++sequence;
+        lastWinner = winner;
+        lastResultSequence = number;
+        publish((protocol, seat) -> protocol.result((int) id, number, result(winner, seat)));
+    }
+}
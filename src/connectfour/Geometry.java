@@ -0,0 +1,398 @@
+package connectfour;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The size of a Connect Four board and the number of tokens in a row needed
+ * to win, along with every bitboard mask that depends on them.<br>
+ * The board is stored in a long column by column, bottom to top. When there
+ * is room each column gets one extra (always empty) sentinel bit on top so
+ * that shifting a line of tokens can never wrap from one column into the
+ * next, and the usual connect four tests are a handful of shifts. Boards too
+ * big for a sentinel row (such as 9x7) instead mask every shift so that
+ * nothing wraps. The masks are all worked out once when a geometry is first
+ * used and geometries are shared, so {@link #of(int, int, int)} always
+ * returns the same object for the same sizes.<br>
+ * The standard 7x6 board:
+ * <pre>
+ *  6 13 20 27 34 41 48   &lt;- sentinel row
+ *  5 12 19 26 33 40 47
+ *  4 11 18 25 32 39 46
+ *  3 10 17 24 31 38 45
+ *  2  9 16 23 30 37 44
+ *  1  8 15 22 29 36 43
+ *  0  7 14 21 28 35 42
+ * </pre>
+ * Columns are numbered from 0 here, unlike ConnectFour which numbers them
+ * from 1 for the players.
+ */
+public final class Geometry {
+    // column and row steps for the horizontal, two diagonal and vertical
+    // directions
+    private static final int[][] STEPS = {{1, 0}, {1, 1}, {1, -1}, {0, 1}};
+    private static final Map<Integer, Geometry> GEOMETRIES = new ConcurrentHashMap<>();
+    /** The standard 7 wide, 6 high, four in a row game. */
+    public static final Geometry STANDARD = of(7, 6, 4);
+    private final int width, height, connect;
+    // bits used by each column, including the sentinel bit if there is one
+    private final int columnBits;
+    // true if each column has a sentinel bit
+    private final boolean sentinel;
+    // true for boards with a sentinel row and four in a row, which can use
+    // the plain shift tests
+    private final boolean classic;
+    // one token in the bottom cell of every column
+    private final long bottomMask;
+    // every playable cell on the board
+    private final long boardMask;
+    // the top cell of every column
+    private final long topMask;
+    // the cells of the first column
+    private final long firstColumn;
+    // shift distance for each direction
+    private final int[] shifts = new int[STEPS.length];
+    // the horizontal and diagonal shifts again, kept out of the array for
+    // the classic tests
+    private final int across, up, down;
+    // guards[d][k + connect - 1] is the cells a shift of k steps in
+    // direction d can land on without leaving the board on the way
+    private final long[][] guards;
+    // every line of connect cells through each cell, by bit index
+    private final long[][] windows;
+    /**
+     * Private constructor, geometries are got with {@link #of(int, int, int)}.
+     * @param width the number of columns
+     * @param height the number of rows
+     * @param connect the number in a row to win
+     */
+    private Geometry(int width, int height, int connect) {
+        this.width = width;
+        this.height = height;
+        this.connect = connect;
+        columnBits = (width * (height + 1) <= 64) ? height + 1 : height;
+        sentinel = columnBits > height;
+        classic = sentinel && connect == 4;
+        firstColumn = (1L << height) - 1;
+        long bottom = 0;
+        for (int i = 0; i < width; i++) {
+            bottom |= 1L << (i * columnBits);
+        }
+        bottomMask = bottom;
+        boardMask = bottom * ((1L << height) - 1);
+        topMask = bottom << (height - 1);
+        guards = new long[STEPS.length][2 * connect - 1];
+        windows = new long[64][];
+        for (int d = 0; d < STEPS.length; d++) {
+            int dc = STEPS[d][0];
+            int dr = STEPS[d][1];
+            shifts[d] = dc * columnBits + dr;
+            for (int k = 1 - connect; k < connect; k++) {
+                long guard = 0;
+                for (int c = 0; c < width; c++) {
+                    for (int r = 0; r < height; r++) {
+                        if (onBoard(c - k * dc, r - k * dr)) guard |= cell(c, r);
+                    }
+                }
+                guards[d][k + connect - 1] = guard;
+            }
+        }
+        for (int c = 0; c < width; c++) {
+            for (int r = 0; r < height; r++) {
+                windows[c * columnBits + r] = lines(c, r);
+            }
+        }
+        across = shifts[0];
+        up = shifts[1];
+        down = shifts[2];
+    }
+    /**
+     * Get the geometry for a board.
+     * @param width the number of columns, 1 to 9
+     * @param height the number of rows, at least 1
+     * @param connect the number in a row to win, from 2 to the longer side
+     * @return the geometry
+     * @throws IllegalArgumentException if the sizes are out of range or the
+     * board has more than 64 cells
+     */
+    public static Geometry of(int width, int height, int connect) {
+        if (width < 1 || width > 9 || height < 1 || width * height > 64
+                || connect < 2 || connect > Math.max(width, height)) {
+            throw new IllegalArgumentException("Unsupported board " + width + "x"
+                    + height + " connect " + connect);
+        }
+        return GEOMETRIES.computeIfAbsent((width << 16) | (height << 8) | connect,
+                key -> new Geometry(width, height, connect));
+    }
+    /**
+     * Get a geometry from a string such as "8x7" or "8x7x5", where the third
+     * number is the number in a row to win (4 if left out).
+     * @param text the board size
+     * @return the geometry
+     * @throws IllegalArgumentException if the string is not a valid size
+     */
+    public static Geometry parse(String text) {
+        return parse(text, 4);
+    }
+    /**
+     * Get a geometry from a string such as "8x7" or "8x7x5", where the third
+     * number is the number in a row to win.
+     * @param text the board size
+     * @param defaultConnect the number in a row to win if the string leaves
+     * it out
+     * @return the geometry
+     * @throws IllegalArgumentException if the string is not a valid size
+     */
+    public static Geometry parse(String text, int defaultConnect) {
+        String[] parts = text.trim().split("x");
+        try {
+            if (parts.length == 2) {
+                return of(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                        defaultConnect);
+            }
+            if (parts.length == 3) {
+                return of(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]));
+            }
+        } catch (NumberFormatException nfe) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Not a board size: " + text);
+    }
+    /**
+     * Private helper to check a cell is on the board.
+     * @param column the column
+     * @param row the row
+     * @return true if the cell is on the board
+     */
+    private boolean onBoard(int column, int row) {
+        return column >= 0 && column < width && row >= 0 && row < height;
+    }
+    /**
+     * Private helper to get the bit for a cell.
+     * @param column the column
+     * @param row the row
+     * @return the cell's bit
+     */
+    private long cell(int column, int row) {
+        return 1L << (column * columnBits + row);
+    }
+    /**
+     * Private helper to list every line of connect cells through a cell.
+     * @param column the column of the cell
+     * @param row the row of the cell
+     * @return the lines as bitboards
+     */
+    private long[] lines(int column, int row) {
+        long[] found = new long[STEPS.length * connect];
+        int count = 0;
+        for (int[] step : STEPS) {
+            // each line starts from 0 to connect - 1 steps back from the cell
+            for (int back = 0; back < connect; back++) {
+                long line = 0;
+                for (int i = 0; i < connect && line != -1; i++) {
+                    int c = column + (i - back) * step[0];
+                    int r = row + (i - back) * step[1];
+                    line = onBoard(c, r) ? line | cell(c, r) : -1;
+                }
+                if (line != -1) found[count++] = line;
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(found, 0, result, 0, count);
+        return result;
+    }
+    /**
+     * Get the number of columns.
+     * @return the board width
+     */
+    public int getWidth() {
+        return width;
+    }
+    /**
+     * Get the number of rows.
+     * @return the board height
+     */
+    public int getHeight() {
+        return height;
+    }
+    /**
+     * Get the number of tokens in a row needed to win.
+     * @return the connect length
+     */
+    public int getConnect() {
+        return connect;
+    }
+    /**
+     * Get the number of cells on the board.
+     * @return width times height
+     */
+    public int getCells() {
+        return width * height;
+    }
+    /**
+     * Get the bit index of the bottom cell of a column. The cells above it
+     * follow on in order.
+     * @param column the column, 0 based
+     * @return the bit index
+     */
+    public int columnStart(int column) {
+        return column * columnBits;
+    }
+    /**
+     * Get the mask of every cell in a column.
+     * @param column the column, 0 based
+     * @return the column mask
+     */
+    public long columnMask(int column) {
+        return firstColumn << (column * columnBits);
+    }
+    /**
+     * Get the mask of every cell on the board.
+     * @return the board mask
+     */
+    public long boardMask() {
+        return boardMask;
+    }
+    /**
+     * Get the cells a token can be dropped into next, one per column that
+     * is not full.
+     * @param mask the bitboard of every token on the board
+     * @return the playable cells
+     */
+    public long playableCells(long mask) {
+        if (sentinel) {
+            return (mask + bottomMask) & boardMask;
+        }
+        // don't add to full columns, with no sentinel the carry would spill
+        // into the next column
+        long full = (mask & topMask) >>> (height - 1);
+        return (mask + (bottomMask ^ full)) & ~mask & boardMask;
+    }
+    /**
+     * Get the cells directly below a set of cells, within the same column.
+     * @param cells the cells
+     * @return the cells below them
+     */
+    public long below(long cells) {
+        return (cells >>> 1) & ~topMask;
+    }
+    /**
+     * Private helper to shift a bitboard a number of steps in a direction,
+     * dropping anything that would leave the board.
+     * @param b the bitboard
+     * @param direction the direction index
+     * @param steps the number of steps, negative to go backwards
+     * @return the shifted bitboard
+     */
+    private long shift(long b, int direction, int steps) {
+        long shifted = (steps > 0) ? b << (steps * shifts[direction])
+                : b >>> (-steps * shifts[direction]);
+        return shifted & guards[direction][steps + connect - 1];
+    }
+    /**
+     * Check a bitboard for a line of connect tokens in any direction.
+     * @param b the bitboard to check
+     * @return true if the bitboard contains a winning line
+     */
+    public boolean isWin(long b) {
+        if (classic) {
+            long m = b & (b >>> across);
+            if ((m & (m >>> (2 * across))) != 0) return true;
+            m = b & (b >>> up);
+            if ((m & (m >>> (2 * up))) != 0) return true;
+            m = b & (b >>> down);
+            if ((m & (m >>> (2 * down))) != 0) return true;
+            m = b & (b >>> 1);
+            return (m & (m >>> 2)) != 0;
+        }
+        for (int d = 0; d < STEPS.length; d++) {
+            // cells ending a run of at least length tokens, doubling the
+            // length each time
+            long run = b;
+            int length = 1;
+            while (length < connect && run != 0) {
+                int add = Math.min(length, connect - length);
+                run &= shift(run, d, add);
+                length += add;
+            }
+            if (run != 0) return true;
+        }
+        return false;
+    }
+    /**
+     * Check if a token is part of a winning line, looking only at the lines
+     * through that one cell.
+     * @param b the bitboard of the player owning the token
+     * @param bit the bit index of the token
+     * @return true if the token is in a winning line
+     */
+    public boolean completesLine(long b, int bit) {
+        for (long line : windows[bit]) {
+            if ((b & line) == line) return true;
+        }
+        return false;
+    }
+    /**
+     * Get the empty cells that would complete a winning line for a player.
+     * The cells may not be playable yet.
+     * @param b the bitboard of the player's tokens
+     * @param mask the bitboard of every token on the board
+     * @return the winning cells
+     */
+    public long winningCells(long b, long mask) {
+        long r;
+        if (classic) {
+            r = (b << 1) & (b << 2) & (b << 3);
+            r |= classicLine(b, across) | classicLine(b, up) | classicLine(b, down);
+        } else {
+            r = 0;
+            for (int d = 0; d < STEPS.length; d++) {
+                // cells with the player's tokens in the j cells before them
+                // and the connect - 1 - j cells after them
+                long before = -1;
+                for (int j = 0; j < connect; j++) {
+                    if (j > 0) before &= shift(b, d, j);
+                    long line = before;
+                    for (int k = 1; k < connect - j && line != 0; k++) {
+                        line &= shift(b, d, -k);
+                    }
+                    r |= line;
+                }
+            }
+        }
+        return r & (boardMask ^ mask);
+    }
+    /**
+     * Private helper to find the cells that complete four in a row along
+     * one direction, on a board with a sentinel row.
+     * @param b the bitboard of the player's tokens
+     * @param s the shift for the direction
+     * @return the cells, including filled ones
+     */
+    private static long classicLine(long b, int s) {
+        long p = (b << s) & (b << (2 * s));
+        long r = p & (b << (3 * s));
+        r |= p & (b >>> s);
+        p = (b >>> s) & (b >>> (2 * s));
+        r |= p & (b >>> (3 * s));
+        return r | (p & (b << s));
+    }
+    /**
+     * Flip a bitboard left to right.
+     * @param b the bitboard
+     * @return the bitboard with the columns in reverse order
+     */
+    public long mirror(long b) {
+        long column = (1L << columnBits) - 1;
+        long r = 0;
+        for (int i = 0; i < width; i++) {
+            r |= ((b >>> (i * columnBits)) & column) << ((width - 1 - i) * columnBits);
+        }
+        return r;
+    }
+    @Override
+    public String toString() {
+        return width + "x" + height + "x" + connect;
+    }
+}
@@ -0,0 +1,554 @@
+package connectfour;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class tests how many games a ConnectFourServer can host, by playing
+ * bots against each other over thousands of connections from one JVM.<br>
+ * Every bot speaks the binary protocol described in {@link Frame} and joins
+ * the server's matchmaker, so the bots are paired with each other, or with
+ * the computer if the server was started with -ai. A bot plays a random
+ * column, or the computer's move with -ai. One thread drives every
+ * connection with a non-blocking NIO selector. The computer's searches run
+ * on a pool of their own threads and hand the columns back to the selector,
+ * so a search never holds up the other bots or their round trips.<br>
+ * The round trip of a move is the time from sending it to the server's
+ * STATE frame for it coming back. Normally a bot moves as soon as it is its
+ * turn, so a slow server is sent fewer moves and looks faster than it is.
+ * With -rate the bots move to a fixed timetable instead, each game making a
+ * move every so often, and each round trip is timed from when the move was
+ * due rather than when it was sent, so waiting on a slow server is counted.
+ * @author Stephen Whitely P308730
+ */
+public class LoadGenerator {
+    private final InetSocketAddress server;
+    private final int clients;
+    private final long durationNanos;
+    // nanoseconds between moves in a game, 0 to move as soon as possible
+    private final long spacing;
+    // how long a bot waits before moving when it isn't on a timetable
+    private final long thinkNanos;
+    // how long the computer thinks for, null to play random columns
+    private final Duration aiTime;
+    private final SplittableRandom random;
+    // the threads that search for the computer's moves, their engines and
+    // the moves they have found for the selector to send, with -ai
+    private ExecutorService searchers;
+    private TranspositionTable table;
+    private final ConcurrentLinkedQueue<Engine> engines = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Search> found = new ConcurrentLinkedQueue<>();
+    // every frame is decoded into this one
+    private final Frame frame = new Frame();
+    private Selector selector;
+    // bots waiting for their move to be due, soonest first
+    private final PriorityQueue<Bot> timers = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.due, b.due));
+    private final List<Bot> bots = new ArrayList<>();
+    // metrics
+    private final Histogram roundTrips = new Histogram();
+    private long moves;
+    private long games;
+    private long refused;
+    private long failed;
+    private long nanos;
+    /**
+     * A bot and its connection.
+     */
+    private static class Bot {
+        SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(4096);
+        final ByteBuffer out = ByteBuffer.allocate(256);
+        int sessionId;
+        int sequence;
+        // the board drawn from the server's frames, the bot is Player 2
+        Position board;
+        int legalMoves;
+        boolean turn;
+        // the start of the round trip of the move waiting to be echoed, 0
+        // if there is none
+        long sentAt;
+        // when the bot's move is due, while it is in the timers
+        long due;
+        // when the first move of this game was due, on a timetable
+        long clock;
+        int gameMoves;
+        // counts the searches started, so a search for a board the bot has
+        // since moved on from is ignored
+        int searches;
+        boolean searching;
+    }
+    /**
+     * A search for a bot's move, run on one of the searchers.
+     */
+    private class Search implements Runnable {
+        final Bot bot;
+        final int id;
+        final long current;
+        final long mask;
+        final int moves;
+        final Geometry geometry;
+        int column;
+        // when the search finished
+        long done;
+        /**
+         * Constructor for a search of the bot's board as it is now.
+         * @param bot the bot to move
+         */
+        Search(Bot bot) {
+            this.bot = bot;
+            this.id = bot.searches;
+            this.current = bot.board.getBoard(1);
+            this.mask = current | bot.board.getBoard(0);
+            this.moves = bot.board.getMoveCount();
+            this.geometry = bot.board.getGeometry();
+        }
+        @Override
+        public void run() {
+            Engine engine = engines.poll();
+            if (engine == null) engine = new Engine(geometry, 0, table);
+            try {
+                column = engine.bestMove(current, mask, moves, aiTime.toNanos()) + 1;
+            } finally {
+                engines.offer(engine);
+            }
+            done = System.nanoTime();
+            found.add(this);
+            selector.wakeup();
+        }
+    }
+    /**
+     * A histogram of times, to within 1/16 of each time.
+     */
+    private static class Histogram {
+        // 16 buckets for each power of two microseconds
+        private final long[] counts = new long[64 * 16];
+        private long count;
+        private long max;
+        /**
+         * Record a time.
+         * @param nanos the time in nanoseconds
+         */
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts[bucket(micros)]++;
+            count++;
+            max = Math.max(max, micros);
+        }
+        /**
+         * Get a percentile of the times.
+         * @param percentile the percentile, from 0 to 100
+         * @return the upper bound of the percentile in microseconds
+         */
+        long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) return Math.min(max, upper(i));
+            }
+            return 0;
+        }
+        /**
+         * Private helper to find the bucket for a time. Times under 16
+         * microseconds have a bucket each, longer ones share 16 buckets for
+         * each power of two.
+         * @param micros the time in microseconds
+         * @return the bucket
+         */
+        private static int bucket(long micros) {
+            if (micros < 16) return (int) micros;
+            int power = 63 - Long.numberOfLeadingZeros(micros);
+            return (power - 3) * 16 + (int) (micros >>> (power - 4) & 15);
+        }
+        /**
+         * Private helper to find the longest time in a bucket.
+         * @param bucket the bucket
+         * @return the time in microseconds
+         */
+        private static long upper(int bucket) {
+            if (bucket < 16) return bucket;
+            int power = bucket / 16 + 3;
+            return ((16 + bucket % 16 + 1L) << (power - 4)) - 1;
+        }
+    }
+    /**
+     * Constructor for a load generator.
+     * @param server the address of the server's binary protocol port
+     * @param clients the number of bots to connect
+     * @param duration how long to play for
+     * @param rate the moves per second to make across all the bots, or 0
+     * for each bot to move as soon as it can
+     * @param think how long a bot waits before moving when there is no rate
+     * @param aiTime how long the computer thinks for each move, or null to
+     * play random columns
+     * @param seed the seed for the random columns
+     */
+    public LoadGenerator(InetSocketAddress server, int clients, Duration duration, double rate,
+            Duration think, Duration aiTime, long seed) {
+        if (clients < 1 || rate < 0) throw new IllegalArgumentException("Bad load settings");
+        this.server = server;
+        this.clients = clients;
+        this.durationNanos = duration.toNanos();
+        // each game is two bots taking turns, so makes 2 / clients of the moves
+        this.spacing = (rate == 0) ? 0 : (long) (1e9 * clients / 2 / rate);
+        this.thinkNanos = think.toNanos();
+        this.aiTime = aiTime;
+        this.random = new SplittableRandom(seed);
+    }
+    /**
+     * Connect the bots and play until the time is up.
+     * @throws IOException if the selector can't be opened
+     */
+    public void run() throws IOException {
+        selector = Selector.open();
+        if (aiTime != null) {
+            table = new TranspositionTable(22);
+            searchers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    r -> {
+                        Thread thread = new Thread(r, "bot search");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        for (int i = 0; i < clients; i++) {
+            Bot bot = new Bot();
+            try {
+                bot.channel = SocketChannel.open();
+                bot.channel.configureBlocking(false);
+                bot.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                bot.channel.connect(server);
+                bot.channel.register(selector, SelectionKey.OP_CONNECT, bot);
+                bots.add(bot);
+            } catch (IOException e) {
+                failed++;
+                if (bot.channel != null) bot.channel.close();
+            }
+        }
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        try {
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                long wait = (timers.isEmpty() ? end : Math.min(end, timers.peek().due)) - now;
+                // select(0) would wait for ever
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                now = System.nanoTime();
+                Search search;
+                while ((search = found.poll()) != null) {
+                    searched(search, now);
+                }
+                while (!timers.isEmpty() && timers.peek().due <= now) {
+                    move(timers.poll(), now);
+                }
+            }
+        } finally {
+            nanos = System.nanoTime() - start;
+            if (searchers != null) searchers.shutdownNow();
+            for (Bot bot : bots) {
+                bot.channel.close();
+            }
+            selector.close();
+        }
+    }
+    /**
+     * Private helper to handle a connection that is ready.
+     * @param key the connection's key
+     */
+    private void handle(SelectionKey key) {
+        Bot bot = (Bot) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                bot.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                send(bot, Frame.encode(Frame.JOIN, 0, ++bot.sequence,
+                        Matchmaker.DEFAULT_RATING >>> 8, Matchmaker.DEFAULT_RATING & 0xFF));
+                return;
+            }
+            if (key.isWritable()) flush(bot);
+            if (key.isReadable()) {
+                if (bot.channel.read(bot.in) < 0) throw new IOException("Server closed the connection");
+                bot.in.flip();
+                while (frame.read(bot.in)) {
+                    received(bot, frame);
+                }
+                bot.in.compact();
+            }
+        } catch (IOException e) {
+            // a dropped bot is counted and the rest carry on
+            failed++;
+            key.cancel();
+            timers.remove(bot);
+            try {
+                bot.channel.close();
+            } catch (IOException ignored) {
+                // it is closed either way
+            }
+        }
+    }
+    /**
+     * Private helper to handle a frame from the server.
+     * @param bot the bot it was sent to
+     * @param frame the frame
+     * @throws ProtocolException if the frame isn't what the server sends
+     */
+    private void received(Bot bot, Frame frame) throws ProtocolException {
+        long now = System.nanoTime();
+        switch (frame.getOpcode()) {
+            case Frame.NEW_GAME:
+                if (frame.getPayloadLength() != 4) break;
+                bot.sessionId = frame.getSessionId();
+                if (bot.board == null) {
+                    Geometry geometry = Geometry.of(frame.getPayload(1), frame.getPayload(2),
+                            frame.getPayload(3));
+                    bot.board = new Position(geometry);
+                    // a bot's timetable starts when its first game does
+                    bot.clock = now;
+                } else {
+                    bot.board.clear();
+                }
+                bot.legalMoves = bot.board.legalMoves();
+                bot.gameMoves = 0;
+                // a search of the last game's board is no use now
+                bot.searches++;
+                bot.searching = false;
+                bot.turn = frame.getPayload(0) == 1;
+                if (bot.turn) schedule(bot, now);
+                return;
+            case Frame.STATE:
+                if (bot.board == null || frame.getPayloadLength() != 6) break;
+                boolean mine = frame.getPayload(0) == 1;
+                bot.board.play(mine ? 1 : 0, frame.getPayload(1) - 1);
+                bot.gameMoves++;
+                if (mine && bot.sentAt != 0) {
+                    roundTrips.record(now - bot.sentAt);
+                    moves++;
+                    bot.sentAt = 0;
+                }
+                bot.turn = frame.getPayload(3) == 1;
+                bot.legalMoves = frame.getPayload(4) << 8 | frame.getPayload(5);
+                if (bot.turn) schedule(bot, now);
+                return;
+            case Frame.RESULT:
+                games++;
+                // the next game's first move is due one move after the last
+                bot.clock += bot.gameMoves * spacing;
+                return;
+            case Frame.ERROR:
+                // a refused move is tried again, it is still the bot's turn
+                refused++;
+                if (bot.sentAt != 0) {
+                    bot.sentAt = 0;
+                    bot.turn = true;
+                    schedule(bot, now);
+                }
+                return;
+            case Frame.PING:
+            case Frame.RESUME:
+                return;
+            default:
+                break;
+        }
+        throw new ProtocolException("Unexpected frame " + frame.getOpcode());
+    }
+    /**
+     * Private helper to make a bot's move now or set a timer for it.
+     * @param bot the bot whose turn it is
+     * @param now the time now
+     */
+    private void schedule(Bot bot, long now) {
+        if (spacing > 0) {
+            bot.due = bot.clock + bot.gameMoves * spacing;
+        } else {
+            bot.due = now + thinkNanos;
+        }
+        if (bot.due <= now) {
+            move(bot, now);
+        } else {
+            timers.add(bot);
+        }
+    }
+    /**
+     * Private helper to make a bot's move, or with -ai to start the search
+     * for it.
+     * @param bot the bot
+     * @param now the time now
+     */
+    private void move(Bot bot, long now) {
+        if (!bot.turn || !bot.channel.isOpen()) return;
+        if (searchers != null) {
+            if (bot.searching) return;
+            bot.searching = true;
+            bot.searches++;
+            searchers.execute(new Search(bot));
+            return;
+        }
+        // the nth column the server says can be played
+        int n = random.nextInt(Integer.bitCount(bot.legalMoves));
+        int legal = bot.legalMoves;
+        for (int i = 0; i < n; i++) {
+            legal &= legal - 1;
+        }
+        // on a timetable a late move is timed from when it was due
+        send(bot, Integer.numberOfTrailingZeros(legal) + 1, (spacing > 0) ? bot.due : now);
+    }
+    /**
+     * Private helper to send the move a search found, if the bot is still
+     * waiting for it.
+     * @param search the finished search
+     * @param now the time now
+     */
+    private void searched(Search search, long now) {
+        Bot bot = search.bot;
+        if (search.id != bot.searches) return;
+        bot.searching = false;
+        if (!bot.turn || !bot.channel.isOpen()) return;
+        // the search is the bot thinking, so on a timetable the move is
+        // timed from when it was both due and found
+        send(bot, search.column, (spacing > 0) ? Math.max(bot.due, search.done) : now);
+    }
+    /**
+     * Private helper to send a bot's move.
+     * @param bot the bot
+     * @param column the column to play, 1 to the board width
+     * @param start when the move's round trip starts
+     */
+    private void send(Bot bot, int column, long start) {
+        bot.turn = false;
+        bot.sentAt = start;
+        try {
+            send(bot, Frame.encode(Frame.MOVE, bot.sessionId, ++bot.sequence, column));
+        } catch (IOException e) {
+            failed++;
+            try {
+                bot.channel.close();
+            } catch (IOException ignored) {
+                // it is closed either way
+            }
+        }
+    }
+    /**
+     * Private helper to send a frame, keeping what the socket won't take
+     * until it is writable.
+     * @param bot the bot
+     * @param frame the frame
+     * @throws IOException if the socket can't be written
+     */
+    private void send(Bot bot, byte[] frame) throws IOException {
+        bot.out.put(frame);
+        flush(bot);
+    }
+    /**
+     * Private helper to write what a bot has waiting to be sent.
+     * @param bot the bot
+     * @throws IOException if the socket can't be written
+     */
+    private void flush(Bot bot) throws IOException {
+        bot.out.flip();
+        bot.channel.write(bot.out);
+        SelectionKey key = bot.channel.keyFor(selector);
+        key.interestOps(bot.out.hasRemaining()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        bot.out.compact();
+    }
+    /**
+     * Print a report of the run to the console.
+     */
+    public void print() {
+        double seconds = nanos / 1e9;
+        System.out.printf("%d bots played %d games and %d moves in %.1fs: %.0f moves/s, "
+                + "%.0f games/s%n", clients, games, moves, seconds, moves / seconds,
+                games / seconds);
+        System.out.println("Move round trip p50 " + roundTrips.getPercentile(50) + "us, p99 "
+                + roundTrips.getPercentile(99) + "us, p99.9 " + roundTrips.getPercentile(99.9)
+                + "us, max " + roundTrips.max + "us");
+        if (refused > 0 || failed > 0) {
+            System.out.println(refused + " moves refused, " + failed + " connections failed");
+        }
+    }
+    /**
+     * The main method runs the load generator against a ConnectFourServer
+     * started with -binary.
+     * @param args host and port of the server's binary port, or blank for
+     * localhost 1235, then "-clients N" for the number of bots, 1000 unless
+     * changed, "-time seconds" for how long to play, 10 unless changed,
+     * "-rate N" to make N moves a second in all on a fixed timetable,
+     * "-think milliseconds" for each bot to wait before moving, "-ai
+     * milliseconds" to play the computer's moves and "-seed N" for the
+     * random moves
+     */
+    public static void main(String[] args) {
+        String host = "localhost";
+        int port = 1235;
+        int clients = 1000;
+        long seconds = 10;
+        double rate = 0;
+        long think = 0;
+        Duration aiTime = null;
+        long seed = System.nanoTime();
+        try {
+            int i = 0;
+            if (args.length >= 2 && !args[0].startsWith("-")) {
+                host = args[0];
+                port = Integer.parseInt(args[1]);
+                i = 2;
+            }
+            for (; i < args.length; i++) {
+                if (args[i].equals("-clients") && i + 1 < args.length) {
+                    clients = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-time") && i + 1 < args.length) {
+                    seconds = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-rate") && i + 1 < args.length) {
+                    rate = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-think") && i + 1 < args.length) {
+                    think = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-ai") && i + 1 < args.length) {
+                    aiTime = Duration.ofMillis(Long.parseLong(args[++i]));
+                } else if (args[i].equals("-seed") && i + 1 < args.length) {
+                    seed = Long.parseLong(args[++i]);
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: java connectfour.LoadGenerator [hostName port#]"
+                    + " [-clients N] [-time seconds] [-rate moves/s] [-think milliseconds]"
+                    + " [-ai milliseconds] [-seed N]");
+            System.exit(1);
+        }
+        System.out.println("Playing " + clients + " bots against " + host + ":" + port
+                + " for " + seconds + "s" + ((rate > 0) ? " at " + rate + " moves/s" : ""));
+        try {
+            LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port),
+                    clients, Duration.ofSeconds(seconds), rate, Duration.ofMillis(think),
+                    aiTime, seed);
+            generator.run();
+            generator.print();
+        } catch (IOException e) {
+            System.out.println(e);
+            System.exit(1);
+        }
+    }
+}
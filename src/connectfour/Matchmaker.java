@@ -0,0 +1,305 @@
+package connectfour;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Pairs up clients waiting for a game on the {@link ConnectFourServer}.<br>
+ * Waiting clients sit in lock-free queues, one per band of ratings, so any
+ * number of threads can join and be matched at once. A client that joins
+ * takes the first client waiting in its own band if there is one, and
+ * otherwise waits. A sweep every few milliseconds pairs up anyone two joins
+ * missed, and lets clients that have waited longer than the target look
+ * further afield: one band either side for each target period waited.<br>
+ * A client that leaves is only marked as gone and is skipped when it
+ * reaches the front of its queue, so leaving never searches a queue.
+ */
+public class Matchmaker {
+    /** The rating of a client that doesn't give one. */
+    public static final int DEFAULT_RATING = 1500;
+    // the queue for each band, the last band takes every rating above it
+    private final ConcurrentLinkedQueue<Ticket>[] bands;
+    private final int bandWidth;
+    private final long targetNanos;
+    // called with each pair, the first the client that waited longest
+    private final BiConsumer<Connection, Connection> pairs;
+    private final ConcurrentHashMap<Connection, Ticket> tickets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+    // metrics
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong matches = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final AtomicLong maxWait = new AtomicLong();
+    // matches by time to match, bucket b counts waits under 2^b microseconds
+    private final AtomicLongArray waits = new AtomicLongArray(40);
+    /**
+     * A client waiting in a queue.
+     */
+    private static class Ticket {
+        final Connection connection;
+        final int band;
+        final long joined = System.nanoTime();
+        // set once the client is matched or leaves
+        final AtomicBoolean taken = new AtomicBoolean();
+        // set when the client leaves, so that a claim given back is dropped
+        volatile boolean gone;
+        Ticket(Connection connection, int band) {
+            this.connection = connection;
+            this.band = band;
+        }
+    }
+    /**
+     * Constructor for a matchmaker.
+     * @param bandWidth the range of ratings in each band, 0 to put every
+     * client in one queue
+     * @param bands the number of bands, ratings above the last band go in it
+     * @param target how long a client should wait before being offered
+     * opponents from other bands, in milliseconds
+     * @param pairs called with each pair of clients matched, on whichever
+     * thread matched them
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Matchmaker(int bandWidth, int bands, long target,
+            BiConsumer<Connection, Connection> pairs) {
+        if (bandWidth < 0 || bands < 1 || target < 1) {
+            throw new IllegalArgumentException("Bad matchmaker settings");
+        }
+        this.bandWidth = bandWidth;
+        this.bands = new ConcurrentLinkedQueue[(bandWidth == 0) ? 1 : bands];
+        for (int i = 0; i < this.bands.length; i++) {
+            this.bands[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(target);
+        this.pairs = pairs;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "matchmaker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, target / 4);
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * Find a client an opponent, or leave it waiting for one. Joining a
+     * client that is already waiting does nothing.
+     * @param connection the client
+     * @param rating the client's rating
+     */
+    public void join(Connection connection, int rating) {
+        int band = (bandWidth == 0) ? 0 : Math.max(0, Math.min(bands.length - 1, rating / bandWidth));
+        Ticket ticket = new Ticket(connection, band);
+        // counted before leave() can find it, so that every take() of it,
+        // whichever thread does it, undoes this
+        depth.incrementAndGet();
+        if (tickets.putIfAbsent(connection, ticket) != null) {
+            depth.decrementAndGet();
+            return;
+        }
+        Ticket other;
+        while ((other = bands[band].poll()) != null) {
+            if (take(other)) {
+                if (take(ticket)) {
+                    match(other, ticket);
+                } else {
+                    // left while joining, put the other one back
+                    if (giveBack(other)) bands[band].offer(other);
+                }
+                return;
+            }
+        }
+        bands[band].offer(ticket);
+    }
+    /**
+     * Take a client out of the queue, if it is still waiting.
+     * @param connection the client
+     */
+    public void leave(Connection connection) {
+        Ticket ticket = tickets.remove(connection);
+        if (ticket == null) return;
+        ticket.gone = true;
+        take(ticket);
+    }
+    /**
+     * Stop matching clients.
+     */
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+    /**
+     * Get the number of clients waiting for an opponent.
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+    /**
+     * Get the number of pairs matched.
+     * @return the number of matches
+     */
+    public long getMatches() {
+        return matches.get();
+    }
+    /**
+     * Get the mean time from joining to being matched, over both clients
+     * of every match.
+     * @return the mean time to match in microseconds
+     */
+    public long getMeanTimeToMatch() {
+        long n = matches.get();
+        return (n == 0) ? 0 : totalWait.get() / (2 * n) / 1000;
+    }
+    /**
+     * Get the longest time a client has waited to be matched.
+     * @return the longest time to match in microseconds
+     */
+    public long getMaxTimeToMatch() {
+        return maxWait.get() / 1000;
+    }
+    /**
+     * Get a percentile of the time to match, to within a factor of two.
+     * @param percentile the percentile, from 0 to 100
+     * @return the upper bound of the time to match in microseconds
+     */
+    public long getTimeToMatch(double percentile) {
+        long total = 0;
+        for (int i = 0; i < waits.length(); i++) {
+            total += waits.get(i);
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < waits.length(); i++) {
+            seen += waits.get(i);
+            if (seen >= rank && seen > 0) return 1L << i;
+        }
+        return 0;
+    }
+    @Override
+    public String toString() {
+        return "waiting " + getQueueDepth() + ", matched " + getMatches()
+                + ", time to match mean " + getMeanTimeToMatch() + "us p50 <"
+                + getTimeToMatch(50) + "us p99 <" + getTimeToMatch(99) + "us max "
+                + getMaxTimeToMatch() + "us";
+    }
+    /**
+     * Private helper to claim a ticket for a match, so that no other thread
+     * can match it too.
+     * @param ticket the ticket
+     * @return true if this thread claimed it
+     */
+    private boolean take(Ticket ticket) {
+        if (!ticket.taken.compareAndSet(false, true)) return false;
+        depth.decrementAndGet();
+        return true;
+    }
+    /**
+     * Private helper to hand over a pair of claimed tickets and record how
+     * long they waited.
+     * @param first the client that waited longest
+     * @param second the other client
+     */
+    private void match(Ticket first, Ticket second) {
+        tickets.remove(first.connection, first);
+        tickets.remove(second.connection, second);
+        long now = System.nanoTime();
+        for (Ticket ticket : new Ticket[] {first, second}) {
+            long wait = now - ticket.joined;
+            totalWait.addAndGet(wait);
+            long max;
+            while (wait > (max = maxWait.get()) && !maxWait.compareAndSet(max, wait)) {
+                // another thread raised it, try again
+            }
+            int bucket = 64 - Long.numberOfLeadingZeros(wait / 1000);
+            waits.incrementAndGet(Math.min(bucket, waits.length() - 1));
+        }
+        matches.incrementAndGet();
+        pairs.accept(first.connection, second.connection);
+    }
+    /**
+     * Private helper run every quarter of the target time. Each band's
+     * queue is emptied and paired off in order, then clients left on their
+     * own are paired across bands if they have waited long enough. Anyone
+     * still unmatched goes back in their queue.
+     */
+    private void sweep() {
+        try {
+            List<Ticket> alone = new ArrayList<>();
+            for (ConcurrentLinkedQueue<Ticket> band : bands) {
+                Ticket first = null;
+                Ticket ticket;
+                // only as many as were waiting, so that a busy queue can't
+                // keep the sweep going for ever
+                for (int n = depth.get() + 1; n > 0 && (ticket = band.poll()) != null; n--) {
+                    if (ticket.taken.get()) continue;
+                    if (first == null) {
+                        first = ticket;
+                    } else if (claim(first, ticket)) {
+                        match(first, ticket);
+                        first = null;
+                    } else if (ticket.taken.get()) {
+                        // the new one left, keep looking for the first
+                    } else {
+                        first = ticket;
+                    }
+                }
+                if (first != null && !first.taken.get()) alone.add(first);
+            }
+            long now = System.nanoTime();
+            for (int i = 0; i < alone.size(); i++) {
+                Ticket ticket = alone.get(i);
+                if (ticket == null || ticket.taken.get()) continue;
+                long reach = (now - ticket.joined) / targetNanos;
+                for (int j = i + 1; j < alone.size(); j++) {
+                    Ticket other = alone.get(j);
+                    if (other == null || Math.abs(other.band - ticket.band) > reach) continue;
+                    if (claim(ticket, other)) {
+                        match(ticket, other);
+                        alone.set(i, null);
+                        alone.set(j, null);
+                        break;
+                    }
+                }
+            }
+            for (Ticket ticket : alone) {
+                if (ticket != null && !ticket.taken.get()) bands[ticket.band].offer(ticket);
+            }
+        } catch (RuntimeException e) {
+            // a failed match must not stop the sweeps
+            System.err.println("Matchmaker " + e);
+        }
+    }
+    /**
+     * Private helper to claim two tickets together, giving back the first
+     * if the second has gone.
+     * @param first the first ticket
+     * @param second the second ticket
+     * @return true if both were claimed
+     */
+    private boolean claim(Ticket first, Ticket second) {
+        if (!take(first)) return false;
+        if (take(second)) return true;
+        giveBack(first);
+        return false;
+    }
+    /**
+     * Private helper to give back a claimed ticket that wasn't matched. If
+     * its client left while it was claimed the ticket stays taken.
+     * @param ticket the ticket
+     * @return true if the client is still waiting
+     */
+    private boolean giveBack(Ticket ticket) {
+        depth.incrementAndGet();
+        ticket.taken.set(false);
+        // a leave that found the ticket claimed has set gone first
+        return !ticket.gone || !take(ticket);
+    }
+}
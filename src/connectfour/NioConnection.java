@@ -0,0 +1,188 @@
+package connectfour;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * A client connection handled by the {@link ConnectFourServer} selector
+ * thread.<br>
+ * Reads only ever happen on the selector thread, which splits the input
+ * into lines or decodes it into frames, depending on the protocol. Sends
+ * can come from any thread and only queue the message. {@link #flush()}
+ * writes everything queued with one gathering write, and if the socket
+ * hasn't room for it all the selector writes the rest when it has.
+ * Messages are never copied, so a frame shared by many connections is only
+ * encoded once.
+ */
+class NioConnection implements Connection {
+    // the longest line a client can send, anything longer is dropped
+    private static final int MAX_LINE = 64;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ConnectFourServer server;
+    private final Protocol protocol;
+    private final ByteBuffer in = ByteBuffer.allocate(1024);
+    // the last frame read, reused for every binary message
+    private final Frame frame = new Frame();
+    // the line read so far, and -1 if it is too long and being skipped
+    private final byte[] line = new byte[MAX_LINE];
+    private int lineLength;
+    // messages waiting for room on the socket, guarded by this
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    // the bytes left in pending, and the array the queue is gathered into
+    private int backlog;
+    private ByteBuffer[] gather = new ByteBuffer[16];
+    // true while the selector is waiting for room on the socket
+    private boolean writing;
+    private volatile GameSession session;
+    private volatile boolean closed;
+    /**
+     * Constructor for a connection.
+     * @param channel the accepted socket, already non-blocking
+     * @param key the selection key the socket is registered with
+     * @param server the server the client connected to
+     * @param protocol the protocol the client speaks
+     */
+    NioConnection(SocketChannel channel, SelectionKey key, ConnectFourServer server,
+            Protocol protocol) {
+        this.channel = channel;
+        this.key = key;
+        this.server = server;
+        this.protocol = protocol;
+    }
+    @Override
+    public Protocol getProtocol() {
+        return protocol;
+    }
+    @Override
+    public GameSession getSession() {
+        return session;
+    }
+    @Override
+    public void setSession(GameSession session) {
+        this.session = session;
+    }
+    /**
+     * Read whatever the client has sent and pass each complete message on
+     * to the server. Only called on the selector thread.
+     * @return false if the client has closed the connection
+     * @throws IOException if the socket can't be read or the client sent
+     * something that is not a frame
+     */
+    boolean read() throws IOException {
+        int n = channel.read(in);
+        if (n < 0) return false;
+        in.flip();
+        if (protocol == Protocol.BINARY) {
+            while (frame.read(in)) {
+                server.received(this, frame);
+            }
+            // keep the start of a frame that hasn't all arrived
+            in.compact();
+            return true;
+        }
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+                if (lineLength >= 0) {
+                    server.received(this, new String(line, 0, lineLength,
+                            StandardCharsets.US_ASCII));
+                }
+                lineLength = 0;
+            } else if (lineLength >= 0) {
+                if (lineLength == MAX_LINE) {
+                    lineLength = -1;
+                } else {
+                    line[lineLength++] = b;
+                }
+            }
+        }
+        in.clear();
+        return true;
+    }
+    @Override
+    public void send(byte[] message) {
+        synchronized (this) {
+            if (closed) return;
+            pending.add(ByteBuffer.wrap(message));
+            backlog += message.length;
+        }
+        server.sent();
+    }
+    @Override
+    public synchronized void flush() {
+        // while the selector is waiting for room it writes the rest
+        if (closed || writing || pending.isEmpty()) return;
+        try {
+            write();
+        } catch (IOException e) {
+            closeLater();
+        }
+    }
+    /**
+     * Write as much of the queued output as the socket will take, and have
+     * the selector write the rest when there is room for it.
+     * @throws IOException if the socket can't be written
+     */
+    synchronized void write() throws IOException {
+        if (gather.length < pending.size()) gather = new ByteBuffer[pending.size() * 2];
+        int count = pending.size();
+        pending.toArray(gather);
+        backlog -= (int) channel.write(gather, 0, count);
+        server.wrote();
+        while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+            pending.poll();
+        }
+        if (pending.isEmpty() == writing) {
+            writing = !writing;
+            key.interestOps(writing ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+            if (writing) key.selector().wakeup();
+        }
+    }
+    @Override
+    public synchronized int getBacklog() {
+        return backlog;
+    }
+    /**
+     * Private helper to close the connection from a thread that may be
+     * holding the session lock, by handing the close to a worker.
+     */
+    private void closeLater() {
+        server.execute(this::close);
+    }
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            // send what the socket will take of the messages sent before
+            // the close, such as the move that ended the game
+            if (!pending.isEmpty()) {
+                try {
+                    write();
+                } catch (IOException e) {
+                    // the client has gone anyway
+                }
+            }
+            closed = true;
+            pending.clear();
+            backlog = 0;
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more can be done with it
+        }
+        server.disconnected(this);
+    }
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+}
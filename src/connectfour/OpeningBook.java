@@ -0,0 +1,306 @@
+package connectfour;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A precomputed table of the best move and exact score for every position in
+ * the first few moves of a game.<br>
+ * The book is built offline by {@link #generate(Path, Geometry, int, int)}, which
+ * solves every position up to a number of plies, and is stored as a sorted
+ * file of fixed size records that is memory mapped when opened, so looking
+ * up a position is a binary search with no searching of the game tree.
+ * A position and its mirror image share one record.<br>
+ * File layout, all big endian:
+ * <pre>
+ * int   magic "C4OB"
+ * byte  board width
+ * byte  board height
+ * byte  number in a row to win
+ * byte  plies
+ * int   version
+ * int   number of records
+ * records sorted by key, each:
+ *   long  position hash (the lower of the position and its mirror)
+ *   byte  score for the player to move
+ *   byte  best column (0 based) in the hashed orientation
+ * </pre>
+ * An opening book can be read by many threads at once.
+ */
+public class OpeningBook {
+    /** Returned by {@link #probe(long, long)} for a position not in the book. */
+    public static final int NOT_FOUND = -1;
+    private static final int MAGIC = 0x43344F42;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 10;
+    private final ByteBuffer records;
+    private final Geometry geometry;
+    private final int plies;
+    private final int count;
+    /**
+     * Private constructor, books are opened with {@link #open(Path)}.
+     * @param records the mapped file
+     * @param geometry the board the book is for
+     * @param plies the number of plies in the book
+     * @param count the number of records
+     */
+    private OpeningBook(ByteBuffer records, Geometry geometry, int plies, int count) {
+        this.records = records;
+        this.geometry = geometry;
+        this.plies = plies;
+        this.count = count;
+    }
+    /**
+     * Open a book file.
+     * @param file the file to open
+     * @return the book
+     * @throws IOException if the file can't be read or is not a book
+     */
+    public static OpeningBook open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC
+                    || map.getInt(8) != VERSION) {
+                throw new IOException(file + " is not an opening book");
+            }
+            Geometry geometry;
+            try {
+                geometry = Geometry.of(map.get(4), map.get(5), map.get(6));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + " is for an unsupported board", e);
+            }
+            long count = map.getInt(12) & 0xFFFFFFFFL;
+            if (HEADER_SIZE + count * RECORD_SIZE != map.limit()) {
+                throw new IOException(file + " is truncated");
+            }
+            return new OpeningBook(map, geometry, map.get(7), (int) count);
+        }
+    }
+    /**
+     * Get the board the book is for.
+     * @return the geometry
+     */
+    public Geometry getGeometry() {
+        return geometry;
+    }
+    /**
+     * Get the number of plies the book covers.
+     * @return the plies
+     */
+    public int getPlies() {
+        return plies;
+    }
+    /**
+     * Get the number of positions in the book (mirror images counted once).
+     * @return the size of the book
+     */
+    public int size() {
+        return count;
+    }
+    /**
+     * Look up a position.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @return {@link #NOT_FOUND}, or the best column (0 based) in the low 8
+     * bits and the score plus 128 in the next 8 bits, see
+     * {@link #moveOf(int)} and {@link #scoreOf(int)}
+     */
+    public int probe(long current, long mask) {
+        if (Long.bitCount(mask) > plies) return NOT_FOUND;
+        long key = Position.hash(current, mask);
+        long mirrorKey = Position.hash(geometry.mirror(current), geometry.mirror(mask));
+        boolean mirrored = mirrorKey < key;
+        if (mirrored) key = mirrorKey;
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int at = HEADER_SIZE + middle * RECORD_SIZE;
+            long found = records.getLong(at);
+            if (found < key) {
+                low = middle + 1;
+            } else if (found > key) {
+                high = middle - 1;
+            } else {
+                int score = records.get(at + 8);
+                int move = records.get(at + 9);
+                if (mirrored) move = geometry.getWidth() - 1 - move;
+                return ((score + 128) << 8) | move;
+            }
+        }
+        return NOT_FOUND;
+    }
+    /**
+     * Get the best move from a {@link #probe(long, long)} result.
+     * @param entry the probe result
+     * @return the best column, 0 based
+     */
+    public static int moveOf(int entry) {
+        return entry & 0xFF;
+    }
+    /**
+     * Get the score from a {@link #probe(long, long)} result.
+     * @param entry the probe result
+     * @return the score for the player to move
+     */
+    public static int scoreOf(int entry) {
+        return (entry >>> 8) - 128;
+    }
+    /**
+     * Build a book by solving every position up to a number of plies and
+     * write it to a file. This can take a very long time, the deepest
+     * positions are solved first so their results in the shared table speed
+     * up the shallower ones.
+     * @param file the file to write
+     * @param geometry the board to build the book for
+     * @param plies the number of tokens on the board in the deepest positions
+     * @param threads the number of threads to solve with
+     * @throws IOException if the file can't be written
+     */
+    public static void generate(Path file, Geometry geometry, int plies, int threads)
+            throws IOException {
+        // key -> {current, mask} with mirror images only kept once
+        Map<Long, long[]> positions = new HashMap<>();
+        collect(geometry, 0, 0, 0, plies, positions);
+        List<long[]> work = new ArrayList<>(positions.values());
+        work.sort((a, b) -> Long.bitCount(b[1]) - Long.bitCount(a[1]));
+        System.out.println(work.size() + " positions to solve");
+        long[] keys = new long[work.size()];
+        short[] results = new short[work.size()];
+        TranspositionTable table = new TranspositionTable(24);
+        // each thread takes the next position from the list so the deepest
+        // are done first
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Engine engine = new Engine(geometry, 0, table);
+                for (int i = next.getAndIncrement(); i < work.size(); i = next.getAndIncrement()) {
+                    long current = work.get(i)[0];
+                    long mask = work.get(i)[1];
+                    int move = engine.bestMove(current, mask, Long.bitCount(mask), 0);
+                    keys[i] = Position.hash(current, mask);
+                    results[i] = (short) ((engine.getScore() << 8) | move);
+                    if ((i + 1) % 1000 == 0) {
+                        System.out.printf("%d/%d solved (%.0f s)%n", i + 1, work.size(),
+                                (System.nanoTime() - start) / 1e9);
+                    }
+                }
+            }, "book generator");
+            workers[t].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+        write(file, geometry, plies, keys, results);
+    }
+    /**
+     * Private helper to find every position up to a number of plies that is
+     * not already won, keeping each position or its mirror image once under
+     * the lower of their two keys.
+     * @param geometry the board
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @param moves the number of tokens on the board
+     * @param plies the deepest positions to find
+     * @param positions the positions found so far
+     */
+    private static void collect(Geometry geometry, long current, long mask, int moves,
+            int plies, Map<Long, long[]> positions) {
+        long key = Position.hash(current, mask);
+        long mirrorKey = Position.hash(geometry.mirror(current), geometry.mirror(mask));
+        if (mirrorKey < key) {
+            if (positions.containsKey(mirrorKey)) return;
+            positions.put(mirrorKey, new long[] {geometry.mirror(current), geometry.mirror(mask)});
+        } else {
+            if (positions.containsKey(key)) return;
+            positions.put(key, new long[] {current, mask});
+        }
+        if (moves == plies) return;
+        long playable = geometry.playableCells(mask);
+        for (int column = 0; column < geometry.getWidth(); column++) {
+            long move = playable & geometry.columnMask(column);
+            if (move == 0) continue;
+            // a winning move ends the game so there is nothing to look up
+            if (geometry.isWin(current | move)) continue;
+            collect(geometry, current ^ mask, mask | move, moves + 1, plies, positions);
+        }
+    }
+    /**
+     * Private helper to sort the solved positions and write the book file.
+     * @param file the file to write
+     * @param geometry the board the book is for
+     * @param plies the plies in the book
+     * @param keys the position keys
+     * @param results the score in the high byte and move in the low byte
+     * of each position
+     * @throws IOException if the file can't be written
+     */
+    private static void write(Path file, Geometry geometry, int plies, long[] keys,
+            short[] results) throws IOException {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(geometry.getWidth());
+            out.writeByte(geometry.getHeight());
+            out.writeByte(geometry.getConnect());
+            out.writeByte(plies);
+            out.writeInt(VERSION);
+            out.writeInt(keys.length);
+            for (int i : order) {
+                out.writeLong(keys[i]);
+                out.writeShort(results[i]);
+            }
+        }
+    }
+    /**
+     * Generate an opening book from the command line.
+     * @param args file name, plies (default 8), threads (default all of
+     * the processors) and board size such as 8x7 or 8x7x5 (default 7x6x4)
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java connectfour.OpeningBook file [plies] [threads] [size]");
+            System.exit(1);
+        }
+        int plies = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        Geometry geometry = (args.length > 3) ? Geometry.parse(args[3]) : Geometry.STANDARD;
+        try {
+            long start = System.nanoTime();
+            generate(Paths.get(args[0]), geometry, plies, threads);
+            OpeningBook book = open(Paths.get(args[0]));
+            System.out.printf("Wrote %d positions to %s in %.0f s%n", book.size(),
+                    args[0], (System.nanoTime() - start) / 1e9);
+        } catch (IOException e) {
+            System.err.println(e);
+            System.out.println("Could not write the opening book.");
+        }
+    }
+}
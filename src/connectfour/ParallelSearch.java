@@ -0,0 +1,221 @@
+package connectfour;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A computer player that searches with several threads at once, in the
+ * "Lazy SMP" style.<br>
+ * Every thread runs its own {@link Engine} on the same position and they all
+ * share one {@link TranspositionTable}. The threads don't talk to each other
+ * at all, they just find each other's results in the table. Helper engines
+ * try their moves in different orders so they tend to fill in parts of the
+ * tree the main engine will need next. When choosing a move against the
+ * clock half of the helpers also search one move deeper than the others.
+ * The answer always comes from the main engine, the helpers are stopped as 
+ * soon as it finishes.
+ */
+public class ParallelSearch implements Strategy {
+    private final Engine[] engines;
+    private final ExecutorService helpers;
+    /**
+     * Constructor for a parallel search with a 256MB table.
+     * @param threads the number of threads to search with
+     * @param timeLimit the most milliseconds to spend choosing a move, 0 for
+     * no limit
+     */
+    public ParallelSearch(int threads, long timeLimit) {
+        this(threads, timeLimit, new TranspositionTable(24));
+    }
+    /**
+     * Constructor for a parallel search.
+     * @param threads the number of threads to search with
+     * @param timeLimit the most milliseconds to spend choosing a move, 0 for
+     * no limit
+     * @param table the transposition table for all of the threads to share
+     */
+    public ParallelSearch(int threads, long timeLimit, TranspositionTable table) {
+        this(Geometry.STANDARD, threads, timeLimit, table);
+    }
+    /**
+     * Constructor for a parallel search on any size of board.
+     * @param geometry the size of the board and the number in a row to win
+     * @param threads the number of threads to search with
+     * @param timeLimit the most milliseconds to spend choosing a move, 0 for
+     * no limit
+     * @param table the transposition table for all of the threads to share
+     */
+    public ParallelSearch(Geometry geometry, int threads, long timeLimit,
+            TranspositionTable table) {
+        engines = new Engine[threads];
+        engines[0] = new Engine(geometry, timeLimit, table);
+        for (int i = 1; i < threads; i++) {
+            engines[i] = new Engine(geometry, 0, table, i);
+        }
+        helpers = (threads > 1) ? Executors.newFixedThreadPool(threads - 1, r -> {
+            Thread thread = new Thread(r, "search helper");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+    /**
+     * Get the number of threads searching.
+     * @return the thread count
+     */
+    public int getThreads() {
+        return engines.length;
+    }
+    /**
+     * Get the number of positions searched by all of the threads since the
+     * search was created.
+     * @return the node count
+     */
+    public long getNodes() {
+        long nodes = 0;
+        for (Engine engine : engines) {
+            nodes += engine.getNodes();
+        }
+        return nodes;
+    }
+    @Override
+    public int selectMove(ConnectFour game) {
+        Future<?>[] running = startHelpers(game, true);
+        try {
+            return engines[0].selectMove(game);
+        } finally {
+            stopHelpers(running);
+        }
+    }
+    /**
+     * Choose the best move for the player whose turn it is, searching deeper
+     * until the time runs out.
+     * @param game the game to move in, must not be over
+     * @param budget how long to search for, zero for no limit
+     * @return the column to play, 1 to the board width
+     */
+    public int bestMove(ConnectFour game, Duration budget) {
+        Future<?>[] running = startHelpers(game, true);
+        try {
+            return engines[0].bestMove(game, budget);
+        } finally {
+            stopHelpers(running);
+        }
+    }
+    /**
+     * Work out the exact score of a game with no time limit.
+     * @param game the game to solve, must not be over
+     * @return the score for the player whose turn it is
+     */
+    public int solve(ConnectFour game) {
+        Future<?>[] running = startHelpers(game, false);
+        try {
+            return engines[0].solve(game);
+        } finally {
+            stopHelpers(running);
+        }
+    }
+    /**
+     * Stop the helper threads. The search can't be used after this.
+     */
+    public void shutdown() {
+        if (helpers != null) helpers.shutdownNow();
+    }
+    /**
+     * Private helper to set the helper engines searching a game.
+     * @param game the game to search
+     * @param deepen true to search deeper and deeper, false to solve
+     * @return the running helpers
+     * @throws IllegalArgumentException if the game is on a different board
+     */
+    private Future<?>[] startHelpers(ConnectFour game, boolean deepen) {
+        if (game.getGeometry() != engines[0].getGeometry()) {
+            throw new IllegalArgumentException("Search is for a "
+                    + engines[0].getGeometry() + " board, not " + game.getGeometry());
+        }
+        Position board = game.getPosition();
+        int turn = game.getTurn();
+        long current = board.getBoard(turn);
+        long mask = current | board.getBoard(1 - turn);
+        int moves = board.getMoveCount();
+        Future<?>[] running = new Future<?>[engines.length - 1];
+        for (int i = 1; i < engines.length; i++) {
+            Engine engine = engines[i];
+            engine.stopped = false;
+            int firstDepth = 1 + i % 2;
+            running[i - 1] = helpers.submit(() -> {
+                if (deepen) {
+                    engine.help(current, mask, moves, firstDepth);
+                } else {
+                    engine.help(current, mask, moves);
+                }
+            });
+        }
+        return running;
+    }
+    /**
+     * Private helper to stop the helper engines and wait for them to finish
+     * so they are ready for the next search. Every helper is waited for
+     * even if this thread is interrupted, since one still running would
+     * keep writing to the shared table during the next search; the
+     * interrupt is passed on once they have all finished.
+     * @param running the running helpers
+     */
+    private void stopHelpers(Future<?>[] running) {
+        for (int i = 1; i < engines.length; i++) {
+            engines[i].stopped = true;
+        }
+        boolean interrupted = false;
+        Throwable failure = null;
+        for (Future<?> helper : running) {
+            while (true) {
+                try {
+                    helper.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // the helper has been told to stop, keep waiting for it
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e.getCause();
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure != null) throw new IllegalStateException(failure);
+    }
+    /**
+     * Measure how the search speed scales with the number of threads by
+     * solving the same positions with 1, 2, 4... threads up to the number of
+     * processors (or the number given) and printing the nodes per second.
+     * @param args the most threads to try, defaults to the processor count
+     */
+    public static void main(String[] args) {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 0) maxThreads = Integer.parseInt(args[0]);
+        // positions that take a single thread roughly a second each
+        String[] openings = {"4444443", "4345", "44444435", "43443", "434434"};
+        System.out.println("threads   nodes/sec    speedup  time(ms)");
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads;
+                threads = (threads == maxThreads) ? threads + 1 : Math.min(threads * 2, maxThreads)) {
+            ParallelSearch search = new ParallelSearch(threads, 0);
+            long start = System.nanoTime();
+            for (String opening : openings) {
+                ConnectFour game = new ConnectFour(0, null);
+                for (char c : opening.toCharArray()) {
+                    game.playMove(game.getTurn(), c - '0');
+                }
+                search.solve(game);
+            }
+            long nanos = System.nanoTime() - start;
+            search.shutdown();
+            double nodesPerSecond = search.getNodes() * 1e9 / nanos;
+            if (threads == 1) base = nanos;
+            System.out.printf("%7d %12.0f %9.2fx %9d%n", threads, nodesPerSecond,
+                    base / nanos, nanos / 1000000);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package connectfour;
+
+/**
+ * A bitboard representation of a Connect Four position.<br>
+ * Each player's tokens are held in a single long, laid out as described in
+ * {@link Geometry}, which also does all of the bit twiddling that depends on
+ * the size of the board.<br>
+ * Columns are numbered from 0 here, unlike ConnectFour which numbers them
+ * from 1 for the players.
+ */
+public class Position {
+    /** The width of the standard board. */
+    public static final int WIDTH = 7;
+    /** The height of the standard board. */
+    public static final int HEIGHT = 6;
+    private final Geometry geometry;
+    // one long per player
+    private final long[] board = new long[2];
+    // number of tokens in each column
+    private final int[] heights;
+    // number of tokens on the board
+    private int moves;
+    // bit c set while column c has room, kept up to date as tokens are played
+    private int legal;
+    /**
+     * Constructor for an empty standard 7x6 board.
+     */
+    public Position() {
+        this(Geometry.STANDARD);
+    }
+    /**
+     * Constructor for an empty board.
+     * @param geometry the size of the board
+     */
+    public Position(Geometry geometry) {
+        this.geometry = geometry;
+        this.heights = new int[geometry.getWidth()];
+        this.legal = (1 << geometry.getWidth()) - 1;
+    }
+    /**
+     * Get the size of the board.
+     * @return the geometry
+     */
+    public Geometry getGeometry() {
+        return geometry;
+    }
+    /**
+     * Remove all tokens from the board.
+     */
+    public void clear() {
+        board[0] = 0;
+        board[1] = 0;
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = 0;
+        }
+        moves = 0;
+        legal = (1 << geometry.getWidth()) - 1;
+    }
+    /**
+     * Check if a token can still be dropped into a column.
+     * @param column the column, 0 to width - 1
+     * @return true if the column is not full
+     */
+    public boolean canPlay(int column) {
+        return heights[column] < geometry.getHeight();
+    }
+    /**
+     * Drop a token for a player into a column. The caller must check
+     * {@link #canPlay(int)} first.
+     * @param player 0 or 1
+     * @param column the column, 0 to width - 1
+     */
+    public void play(int player, int column) {
+        board[player] |= 1L << (geometry.columnStart(column) + heights[column]);
+        heights[column]++;
+        moves++;
+        if (heights[column] == geometry.getHeight()) legal &= ~(1 << column);
+    }
+    /**
+     * Get the columns a token can still be dropped into.
+     * @return a bitmask with bit c set if column c is not full
+     */
+    public int legalMoves() {
+        return legal;
+    }
+    /**
+     * Get the owner of a cell.
+     * @param column the column, 0 to width - 1
+     * @param row the row, 0 (bottom) to height - 1
+     * @return 0 or 1 for the player owning the cell, -1 if it is empty
+     */
+    public int getCell(int column, int row) {
+        long bit = 1L << (geometry.columnStart(column) + row);
+        if ((board[0] & bit) != 0) return 0;
+        if ((board[1] & bit) != 0) return 1;
+        return -1;
+    }
+    /**
+     * Get the number of tokens in a column.
+     * @param column the column, 0 to width - 1
+     * @return the column height
+     */
+    public int getHeight(int column) {
+        return heights[column];
+    }
+    /**
+     * Get the bitboard of a player's tokens.
+     * @param player 0 or 1
+     * @return the player's bitboard
+     */
+    public long getBoard(int player) {
+        return board[player];
+    }
+    /**
+     * Get the number of tokens played since the board was cleared.
+     * @return the move count
+     */
+    public int getMoveCount() {
+        return moves;
+    }
+    /**
+     * Check if every cell on the board has been filled.
+     * @return true if the board is full
+     */
+    public boolean isFull() {
+        return moves == geometry.getCells();
+    }
+    /**
+     * Check if the top token of a column is part of a winning line for the
+     * player that owns it. Only the lines through that one cell are looked
+     * at so this is the cheap test to run straight after a move.
+     * @param player the player who played into the column
+     * @param column the column, 0 to width - 1, must not be empty
+     * @return true if the token completes a line
+     */
+    public boolean completesLine(int player, int column) {
+        return geometry.completesLine(board[player],
+                geometry.columnStart(column) + heights[column] - 1);
+    }
+    /**
+     * Check if a player has a winning line.
+     * @param player 0 or 1
+     * @return true if the player has won
+     */
+    public boolean hasWon(int player) {
+        return geometry.isWin(board[player]);
+    }
+    /**
+     * Check a standard 7x6 bitboard for a line of four in any direction.
+     * @param b the bitboard to check
+     * @return true if the bitboard contains four in a row
+     */
+    public static boolean isWin(long b) {
+        return Geometry.STANDARD.isWin(b);
+    }
+    /**
+     * Get the mask of every cell in a column of the standard board.
+     * @param column the column, 0 to WIDTH - 1
+     * @return the column mask
+     */
+    public static long columnMask(int column) {
+        return Geometry.STANDARD.columnMask(column);
+    }
+    /**
+     * Get the cells a token can be dropped into next on the standard board,
+     * one per column that is not full.
+     * @param mask the bitboard of every token on the board
+     * @return the playable cells
+     */
+    public static long playableCells(long mask) {
+        return Geometry.STANDARD.playableCells(mask);
+    }
+    /**
+     * Get the empty cells that would complete four in a row for a player on
+     * the standard board. The cells may not be playable yet.
+     * @param b the bitboard of the player's tokens
+     * @param mask the bitboard of every token on the board
+     * @return the winning cells
+     */
+    public static long winningCells(long b, long mask) {
+        return Geometry.STANDARD.winningCells(b, mask);
+    }
+    /**
+     * Hash a position, for looking it up in tables.
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @return the hash
+     */
+    public static long hash(long current, long mask) {
+        // current is mixed on its own first, a plain multiply only carries
+        // upwards so positions that differ only in the top bits of a big
+        // board would hash the same
+        return mix(mix(current) + mask);
+    }
+    /**
+     * Private helper to scramble the bits of a long, every bit of the input
+     * affecting every bit of the output.
+     * @param h the long
+     * @return the scrambled long
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+    /**
+     * Flip a standard board bitboard left to right.
+     * @param b the bitboard
+     * @return the bitboard with the columns in reverse order
+     */
+    public static long mirror(long b) {
+        return Geometry.STANDARD.mirror(b);
+    }
+}
@@ -0,0 +1,257 @@
+package connectfour;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An on disk store of solved positions that lasts between runs.<br>
+ * The file is a fixed size open addressing hash table of position hash to
+ * result, memory mapped with {@link FileChannel#map}, so opening it costs
+ * nothing and the operating system keeps the busy parts in memory.<br>
+ * Entries are only ever added, never changed or removed. Any number of
+ * threads can read at once without locking: a slot is written value first
+ * and key second, and a reader that finds the key but not yet the value just
+ * treats the position as missing. Writes are done in batches under a lock
+ * and the entry count in the header is updated after each batch.<br>
+ * File layout, all big endian:
+ * <pre>
+ * int   magic "C4DB"
+ * byte  board width
+ * byte  board height
+ * byte  number in a row to win
+ * byte  log2 of the number of slots
+ * int   version
+ * int   unused
+ * long  number of entries
+ * slots, each:
+ *   long  position hash, 0 for an empty slot
+ *   long  result, never 0
+ * </pre>
+ */
+public class PositionDatabase implements Closeable {
+    private static final int MAGIC = 0x43344442;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    // where the entry count is kept in the header
+    private static final int COUNT = 16;
+    private static final int SLOT_SIZE = 16;
+    /**
+     * log2 of the number of slots the programs give a new database, a 64MB
+     * file holding 3 million positions.
+     */
+    public static final int DEFAULT_SLOTS = 22;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final Geometry geometry;
+    private final int slotMask;
+    private final int capacity;
+    // written only by the inserting thread while holding the lock
+    private volatile long count;
+    // the arrays put() passes to add(), reused under the lock
+    private final long[] single = new long[1];
+    private final long[] singleValue = new long[1];
+    /**
+     * Private constructor, databases are opened with
+     * {@link #open(Path, int)}.
+     * @param channel the open file
+     * @param map the mapped file
+     * @param geometry the board the database is for
+     * @param log2Slots log2 of the number of slots
+     */
+    private PositionDatabase(FileChannel channel, MappedByteBuffer map, Geometry geometry,
+            int log2Slots) {
+        this.channel = channel;
+        this.map = map;
+        this.geometry = geometry;
+        this.slotMask = (1 << log2Slots) - 1;
+        // keep a quarter of the slots free so probing stays short
+        this.capacity = (1 << log2Slots) / 4 * 3;
+        this.count = map.getLong(COUNT);
+    }
+    /**
+     * Open a database file for the standard board, creating it if it doesn't
+     * exist.
+     * @param file the file
+     * @param log2Slots for a new file, log2 of the number of slots, from 4 to
+     * 26
+     * @return the database
+     * @throws IOException if the file can't be opened or is not a database
+     * for this board
+     */
+    public static PositionDatabase open(Path file, int log2Slots) throws IOException {
+        return open(file, Geometry.STANDARD, log2Slots);
+    }
+    /**
+     * Open a database file, creating it if it doesn't exist.
+     * @param file the file
+     * @param geometry the board the positions are on
+     * @param log2Slots for a new file, log2 of the number of slots, from 4 to
+     * 26 (26 is a 1GB file holding 50 million positions)
+     * @return the database
+     * @throws IOException if the file can't be opened or is not a database
+     * for this board
+     */
+    public static PositionDatabase open(Path file, Geometry geometry, int log2Slots)
+            throws IOException {
+        boolean exists = Files.exists(file);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (exists) {
+                // check the size first, mapping past the end would grow the file
+                if (channel.size() < HEADER_SIZE) {
+                    throw new IOException(file + " is not a position database");
+                }
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(0) != MAGIC
+                        || header.getInt(8) != VERSION) {
+                    throw new IOException(file + " is not a position database");
+                }
+                if (header.get(4) != geometry.getWidth() || header.get(5) != geometry.getHeight()
+                        || header.get(6) != geometry.getConnect()) {
+                    throw new IOException(file + " is for a " + header.get(4) + "x"
+                            + header.get(5) + "x" + header.get(6) + " board");
+                }
+                log2Slots = header.get(7);
+            } else if (log2Slots < 4 || log2Slots > 26) {
+                throw new IllegalArgumentException("log2Slots must be from 4 to 26");
+            }
+            long size = HEADER_SIZE + ((long) SLOT_SIZE << log2Slots);
+            if (exists && channel.size() != size) {
+                throw new IOException(file + " is truncated");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!exists) {
+                map.putInt(0, MAGIC);
+                map.put(4, (byte) geometry.getWidth());
+                map.put(5, (byte) geometry.getHeight());
+                map.put(6, (byte) geometry.getConnect());
+                map.put(7, (byte) log2Slots);
+                map.putInt(8, VERSION);
+                map.putInt(12, 0);
+                map.putLong(COUNT, 0);
+                map.force();
+            }
+            return new PositionDatabase(channel, map, geometry, log2Slots);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    /**
+     * Get the board the database is for.
+     * @return the geometry
+     */
+    public Geometry getGeometry() {
+        return geometry;
+    }
+    /**
+     * Get the number of positions stored.
+     * @return the size of the database
+     */
+    public long size() {
+        return count;
+    }
+    /**
+     * Check whether the database has no room for new positions.
+     * @return true if it is full
+     */
+    public boolean isFull() {
+        return count >= capacity;
+    }
+    /**
+     * Look up a result. Safe to call from any number of threads.
+     * @param key the position hash
+     * @return the result, or 0 if the position is not stored
+     */
+    public long get(long key) {
+        if (key == 0) key = 1;
+        for (int i = (int) (key ^ (key >>> 32)) & slotMask; ; i = (i + 1) & slotMask) {
+            int at = HEADER_SIZE + i * SLOT_SIZE;
+            long found = map.getLong(at);
+            if (found == 0) return 0;
+            if (found == key) return map.getLong(at + 8);
+        }
+    }
+    /**
+     * Add a batch of results. Positions already stored keep their old
+     * result. The batch is written through to the file before returning.
+     * @param keys the position hashes
+     * @param values the results, none of which can be 0
+     * @param length the number of results to add from the arrays
+     * @throws IllegalStateException if the database is full
+     */
+    public synchronized void insert(long[] keys, long[] values, int length) {
+        add(keys, values, length);
+        map.force();
+    }
+    /**
+     * Add one result. It is not written through to the file until the next
+     * batch is inserted or the database is closed, so that a search storing
+     * a result at every node doesn't sync the file each time. Once the
+     * database is full new results are dropped rather than failing the
+     * search that found them.
+     * @param key the position hash
+     * @param value the result, which can't be 0
+     * @return true if the result is stored, false if there was no room
+     */
+    public synchronized boolean put(long key, long value) {
+        single[0] = key;
+        singleValue[0] = value;
+        try {
+            add(single, singleValue, 1);
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+    /**
+     * Private helper to add results to the mapping, without forcing them
+     * out to the file. Must be called holding the lock.
+     * @param keys the position hashes
+     * @param values the results, none of which can be 0
+     * @param length the number of results to add from the arrays
+     * @throws IllegalStateException if the database is full
+     */
+    private void add(long[] keys, long[] values, int length) {
+        long added = count;
+        for (int n = 0; n < length; n++) {
+            long key = (keys[n] == 0) ? 1 : keys[n];
+            for (int i = (int) (key ^ (key >>> 32)) & slotMask; ; i = (i + 1) & slotMask) {
+                int at = HEADER_SIZE + i * SLOT_SIZE;
+                long found = map.getLong(at);
+                if (found == key) break;
+                if (found == 0) {
+                    if (added == capacity) {
+                        count = added;
+                        map.putLong(COUNT, added);
+                        throw new IllegalStateException("position database is full");
+                    }
+                    // value first so a reader never sees a key with no value
+                    map.putLong(at + 8, values[n]);
+                    map.putLong(at, key);
+                    added++;
+                    break;
+                }
+            }
+        }
+        map.putLong(COUNT, added);
+        count = added;
+    }
+    /**
+     * Close the database file. It must not be used after this.
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            map.force();
+        }
+        channel.close();
+    }
+}
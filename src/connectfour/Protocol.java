@@ -0,0 +1,142 @@
+package connectfour;
+
+/**
+ * The ways a {@link Connection} can talk to its client.<br>
+ * A {@link GameSession} says what happened and the protocol of each seat
+ * turns it into the bytes for that client. A message the protocol has no
+ * way to say comes back as null and is not sent.
+ */
+enum Protocol {
+    /** One number per line, the protocol of the original game. */
+    TEXT {
+        @Override
+        byte[] greeting(Geometry geometry) {
+            return line(geometry.toString());
+        }
+        @Override
+        byte[] newGame(int sessionId, int sequence, Geometry geometry, boolean first) {
+            return line(first ? "1" : "0");
+        }
+        @Override
+        byte[] movePlayed(int sessionId, int sequence, boolean mine, int column, int row,
+                boolean yourTurn, int legalMoves) {
+            // text clients play their own moves and only hear of the other's
+            return mine ? null : line(Integer.toString(column));
+        }
+        @Override
+        byte[] result(int sessionId, int sequence, int result) {
+            // the client works it out from the board
+            return null;
+        }
+        @Override
+        byte[] error(int sessionId, int sequence, int reason) {
+            return null;
+        }
+        @Override
+        byte[] resumeKey(int sessionId, int sequence, int key) {
+            // a text client can't come back to its game
+            return null;
+        }
+    },
+    /** Length prefixed frames, see {@link Frame}. */
+    BINARY {
+        @Override
+        byte[] greeting(Geometry geometry) {
+            // the board size comes with every new game
+            return null;
+        }
+        @Override
+        byte[] newGame(int sessionId, int sequence, Geometry geometry, boolean first) {
+            return Frame.encode(Frame.NEW_GAME, sessionId, sequence, first ? 1 : 0,
+                    geometry.getWidth(), geometry.getHeight(), geometry.getConnect());
+        }
+        @Override
+        byte[] movePlayed(int sessionId, int sequence, boolean mine, int column, int row,
+                boolean yourTurn, int legalMoves) {
+            return Frame.encode(Frame.STATE, sessionId, sequence, mine ? 1 : 0, column, row,
+                    yourTurn ? 1 : 0, legalMoves >>> 8, legalMoves & 0xFF);
+        }
+        @Override
+        byte[] result(int sessionId, int sequence, int result) {
+            return Frame.encode(Frame.RESULT, sessionId, sequence, result);
+        }
+        @Override
+        byte[] error(int sessionId, int sequence, int reason) {
+            return Frame.encode(Frame.ERROR, sessionId, sequence, reason);
+        }
+        @Override
+        byte[] resumeKey(int sessionId, int sequence, int key) {
+            return Frame.encode(Frame.RESUME, sessionId, sequence, key >>> 24, key >>> 16 & 0xFF,
+                    key >>> 8 & 0xFF, key & 0xFF);
+        }
+    };
+    /**
+     * Encode the message a client is sent when it joins a session.
+     * @param geometry the size of the board
+     * @return the message, or null
+     */
+    abstract byte[] greeting(Geometry geometry);
+    /**
+     * Encode the start of a game.
+     * @param sessionId the session id
+     * @param sequence the sequence number
+     * @param geometry the size of the board
+     * @param first true if the client moves first
+     * @return the message, or null
+     */
+    abstract byte[] newGame(int sessionId, int sequence, Geometry geometry, boolean first);
+    /**
+     * Encode a move played by either player.
+     * @param sessionId the session id
+     * @param sequence the sequence number
+     * @param mine true if the client played it
+     * @param column the column played, from 1
+     * @param row the row the token landed in, from 0 at the bottom
+     * @param yourTurn true if the client moves next
+     * @param legalMoves bit c - 1 set for each column c that can be played
+     * next, 0 if the game is over
+     * @return the message, or null
+     */
+    abstract byte[] movePlayed(int sessionId, int sequence, boolean mine, int column, int row,
+            boolean yourTurn, int legalMoves);
+    /**
+     * Encode the end of a game.
+     * @param sessionId the session id
+     * @param sequence the sequence number
+     * @param result {@link Frame#WON}, {@link Frame#LOST} or
+     * {@link Frame#DRAW} for the client
+     * @return the message, or null
+     */
+    abstract byte[] result(int sessionId, int sequence, int result);
+    /**
+     * Encode the refusal of something the client sent.
+     * @param sessionId the session id
+     * @param sequence the sequence number of the client's message
+     * @param reason why it was refused
+     * @return the message, or null
+     */
+    abstract byte[] error(int sessionId, int sequence, int reason);
+    /**
+     * Encode the key a client needs to come back to its seat if it loses
+     * its connection.
+     * @param sessionId the session id
+     * @param sequence the sequence number of the last message sent
+     * @param key the key
+     * @return the message, or null
+     */
+    abstract byte[] resumeKey(int sessionId, int sequence, int key);
+    /**
+     * Private helper to encode a line of text.
+     * @param text the text, without its line ending
+     * @return the bytes of the line
+     */
+    private static byte[] line(String text) {
+        byte[] bytes = new byte[text.length() + 2];
+        for (int i = 0; i < text.length(); i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        bytes[bytes.length - 2] = 13;
+        bytes[bytes.length - 1] = 10;
+        return bytes;
+    }
+}
@@ -0,0 +1,30 @@
+package connectfour;
+
+import java.util.SplittableRandom;
+
+/**
+ * A strategy that plays a random column that still has space in it.
+ */
+public class RandomStrategy implements Strategy {
+    private final SplittableRandom random;
+    /**
+     * Constructor for a random strategy.
+     * @param random the random number generator to use, which should not be
+     * shared with other threads
+     */
+    public RandomStrategy(SplittableRandom random) {
+        this.random = random;
+    }
+    @Override
+    public int selectMove(ConnectFour game) {
+        Position board = game.getPosition();
+        int width = game.getWidth();
+        // keep picking until a column with space is found, the same as a
+        // player choosing at random would
+        int column;
+        do {
+            column = random.nextInt(width);
+        } while (!board.canPlay(column));
+        return column + 1;
+    }
+}
@@ -0,0 +1,144 @@
+package connectfour;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import org.fusesource.jansi.AnsiOutputStream;
+
+/**
+ * This class measures how fast the jansi {@link AnsiOutputStream} filters
+ * console output that is full of escape codes, the way it does whenever
+ * System.out is not a terminal.<br>
+ * It records the colour frames of a batch of random games with a
+ * {@link ConsoleRenderer}, then writes them through an AnsiOutputStream to
+ * a stream that throws them away, first a byte at a time (which is how
+ * every write used to be handled) and then in blocks the size a
+ * PrintStream passes on. Both ways must give the same output.
+ * @author Stephen Whitely P308730
+ */
+public class RenderBenchmark {
+    // the size of the blocks written, about the size of one frame
+    private static final int BLOCK_SIZE = 512;
+    /**
+     * A stream that counts the bytes written to it and keeps nothing.
+     */
+    private static class NullOutputStream extends OutputStream {
+        private long count;
+        @Override
+        public void write(int b) {
+            count++;
+        }
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+    /**
+     * Run the benchmark.
+     * @param args the number of games to record (200 unless given) and the
+     * number of times to write them (10 unless given)
+     * @throws IOException if writing fails, which it doesn't for these
+     * streams
+     */
+    public static void main(String[] args) throws IOException {
+        int games = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        byte[] output = record(games, new SplittableRandom(1));
+        System.out.printf("%d games, %.1f MB of output with %d escape codes%n", games,
+                output.length / 1e6, count(output, (byte) 27));
+        byte[] slow = filter(output, 1);
+        byte[] fast = filter(output, BLOCK_SIZE);
+        if (!Arrays.equals(slow, fast)) {
+            System.out.println("Writing in blocks changed the output");
+            System.exit(1);
+        }
+        for (int round = 0; round < rounds; round++) {
+            double byByte = time(output, 1);
+            double byBlock = time(output, BLOCK_SIZE);
+            System.out.printf("byte at a time %7.1f MB/s   in blocks %7.1f MB/s   %5.1fx%n",
+                    output.length / byByte / 1e6, output.length / byBlock / 1e6, byByte / byBlock);
+        }
+    }
+    /**
+     * Private helper to record the console output of random games.
+     * @param games the number of games
+     * @param random the random number generator for the moves
+     * @return the output
+     */
+    private static byte[] record(int games, SplittableRandom random) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ConsoleRenderer renderer = new ConsoleRenderer(new PrintStream(bytes), false);
+        Strategy strategy = new RandomStrategy(random);
+        ConnectFour game = new ConnectFour(Geometry.STANDARD, 0, renderer);
+        for (int i = 0; i < games; i++) {
+            if (i > 0) game.startNewGame(i % 2);
+            while (!game.isGameOver()) {
+                game.playMove(game.getTurn(), strategy.selectMove(game));
+            }
+        }
+        return bytes.toByteArray();
+    }
+    /**
+     * Private helper to write the output through an AnsiOutputStream.
+     * @param output the output
+     * @param block the number of bytes to write at once
+     * @return what comes out, with the escape codes taken out
+     * @throws IOException if writing fails
+     */
+    private static byte[] filter(byte[] output, int block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(new AnsiOutputStream(bytes), output, block);
+        return bytes.toByteArray();
+    }
+    /**
+     * Private helper to time writing the output through an
+     * AnsiOutputStream.
+     * @param output the output
+     * @param block the number of bytes to write at once
+     * @return the time taken in seconds
+     * @throws IOException if writing fails
+     */
+    private static double time(byte[] output, int block) throws IOException {
+        NullOutputStream sink = new NullOutputStream();
+        long start = System.nanoTime();
+        write(new AnsiOutputStream(sink), output, block);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (sink.count == 0) throw new IllegalStateException();
+        return seconds;
+    }
+    /**
+     * Private helper to write bytes to a stream in blocks, or a byte at a
+     * time for a block size of 1.
+     * @param out the stream
+     * @param output the bytes
+     * @param block the number of bytes to write at once
+     * @throws IOException if writing fails
+     */
+    private static void write(OutputStream out, byte[] output, int block) throws IOException {
+        if (block == 1) {
+            for (byte b : output) {
+                out.write(b);
+            }
+            return;
+        }
+        for (int i = 0; i < output.length; i += block) {
+            out.write(output, i, Math.min(block, output.length - i));
+        }
+    }
+    /**
+     * Private helper to count a byte.
+     * @param bytes the bytes to look in
+     * @param b the byte to count
+     * @return how many times it is there
+     */
+    private static int count(byte[] bytes, byte b) {
+        int count = 0;
+        for (byte x : bytes) {
+            if (x == b) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,239 @@
+package connectfour;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * This class plays large batches of computer vs computer games of
+ * ConnectFour across all of the processor cores and reports the results.<br>
+ * The games are headless so nothing is printed while they are played. Each
+ * batch of games gets its own random number generator split from a single
+ * seed, so a run can be repeated by using the same seed.
+ */
+public class Simulator {
+    // number of games a task plays itself rather than splitting further
+    private static final int BATCH_SIZE = 1024;
+    private final Function<SplittableRandom, Strategy> playerOne;
+    private final Function<SplittableRandom, Strategy> playerTwo;
+    private final int threads;
+    private final Geometry geometry;
+    /**
+     * Constructor for a simulator playing on the standard board.
+     * @param playerOne creates the strategy used by player 1 in each batch
+     * @param playerTwo creates the strategy used by player 2 in each batch
+     * @param threads the number of threads to play on
+     */
+    public Simulator(Function<SplittableRandom, Strategy> playerOne,
+            Function<SplittableRandom, Strategy> playerTwo, int threads) {
+        this(Geometry.STANDARD, playerOne, playerTwo, threads);
+    }
+    /**
+     * Constructor for a simulator.
+     * @param geometry the size of the board and the number in a row to win
+     * @param playerOne creates the strategy used by player 1 in each batch
+     * @param playerTwo creates the strategy used by player 2 in each batch
+     * @param threads the number of threads to play on
+     */
+    public Simulator(Geometry geometry, Function<SplittableRandom, Strategy> playerOne,
+            Function<SplittableRandom, Strategy> playerTwo, int threads) {
+        this.geometry = geometry;
+        this.playerOne = playerOne;
+        this.playerTwo = playerTwo;
+        this.threads = threads;
+    }
+    /**
+     * Play a number of games. The first player of each game is picked at
+     * random.
+     * @param games the number of games to play
+     * @param seed the seed for the random number generators
+     * @return the combined results of all the games
+     */
+    public Result run(long games, long seed) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            Result result = pool.invoke(new Batch(0, games, new SplittableRandom(seed)));
+            result.nanos = System.nanoTime() - start;
+            return result;
+        } finally {
+            pool.shutdown();
+        }
+    }
+    /**
+     * The results of a run of the simulator.
+     */
+    public static class Result {
+        private long games;
+        // games won by player 1, player 2 and drawn
+        private final long[] outcomes = new long[3];
+        // number of games ending after each number of moves
+        private final long[] lengths;
+        private long nanos;
+        /**
+         * Private constructor, results are made by the simulator.
+         * @param cells the number of cells on the board
+         */
+        private Result(int cells) {
+            lengths = new long[cells + 1];
+        }
+        /**
+         * Private helper to record a finished game.
+         * @param game the game that has ended
+         */
+        private void record(ConnectFour game) {
+            games++;
+            int winner = game.getWinner();
+            outcomes[(winner == -2) ? 2 : winner]++;
+            lengths[game.getPosition().getMoveCount()]++;
+        }
+        /**
+         * Private helper to add the results of another batch to this one.
+         * @param other the other results
+         * @return this result
+         */
+        private Result merge(Result other) {
+            games += other.games;
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] += other.outcomes[i];
+            }
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] += other.lengths[i];
+            }
+            return this;
+        }
+        /**
+         * Get the number of games played.
+         * @return the number of games
+         */
+        public long getGames() {
+            return games;
+        }
+        /**
+         * Get the number of games with a result.
+         * @param winner 0 for player 1 wins, 1 for player 2 wins or -2 for
+         * draws
+         * @return the number of games
+         */
+        public long getOutcome(int winner) {
+            return outcomes[(winner == -2) ? 2 : winner];
+        }
+        /**
+         * Get the number of games that lasted a number of moves.
+         * @param moves the number of moves
+         * @return the number of games
+         */
+        public long getLength(int moves) {
+            return lengths[moves];
+        }
+        /**
+         * Get the number of games played per second.
+         * @return the games per second
+         */
+        public double getGamesPerSecond() {
+            return games * 1e9 / Math.max(1, nanos);
+        }
+        /**
+         * Print a report of the results to the console.
+         */
+        public void print() {
+            System.out.printf("%d games in %.3f s (%.0f games/sec)%n", games,
+                    nanos / 1e9, getGamesPerSecond());
+            System.out.printf("Player 1 wins: %d (%.2f%%)%n", outcomes[0], percent(outcomes[0]));
+            System.out.printf("Player 2 wins: %d (%.2f%%)%n", outcomes[1], percent(outcomes[1]));
+            System.out.printf("Draws:         %d (%.2f%%)%n", outcomes[2], percent(outcomes[2]));
+            System.out.println("Game length histogram (moves: games)");
+            long most = 1;
+            for (long count : lengths) {
+                most = Math.max(most, count);
+            }
+            for (int i = 0; i < lengths.length; i++) {
+                if (lengths[i] == 0) continue;
+                StringBuilder bar = new StringBuilder();
+                for (long j = lengths[i] * 50 / most; j > 0; j--) {
+                    bar.append('#');
+                }
+                System.out.printf("%3d: %10d %s%n", i, lengths[i], bar);
+            }
+        }
+        /**
+         * Private helper to turn a count into a percentage of the games.
+         * @param count the count
+         * @return the percentage
+         */
+        private double percent(long count) {
+            return 100.0 * count / Math.max(1, games);
+        }
+    }
+    /**
+     * A fork/join task that plays a range of games, splitting the range in
+     * half until it is small enough to play on one thread.
+     */
+    private class Batch extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+        private final long from, to;
+        private final SplittableRandom random;
+        /**
+         * Constructor for a batch of games.
+         * @param from the first game (inclusive)
+         * @param to the last game (exclusive)
+         * @param random the random number generator for this batch only
+         */
+        Batch(long from, long to, SplittableRandom random) {
+            this.from = from;
+            this.to = to;
+            this.random = random;
+        }
+        @Override
+        protected Result compute() {
+            if (to - from > BATCH_SIZE) {
+                long middle = (from + to) >>> 1;
+                Batch left = new Batch(from, middle, random.split());
+                Batch right = new Batch(middle, to, random.split());
+                left.fork();
+                return right.compute().merge(left.join());
+            }
+            Strategy[] players = {
+                playerOne.apply(random.split()), playerTwo.apply(random.split())
+            };
+            Result result = new Result(geometry.getCells());
+            ConnectFour game = new ConnectFour(geometry, 0, null);
+            for (long i = from; i < to; i++) {
+                game.startNewGame(random.nextInt(2));
+                while (!game.isGameOver()) {
+                    int turn = game.getTurn();
+                    game.playMove(turn, players[turn].selectMove(game));
+                }
+                result.record(game);
+            }
+            return result;
+        }
+    }
+    /**
+     * Run the simulator from the command line.
+     * @param args number of games, number of threads (defaults to all of the
+     * processors), random seed (defaults to the time) and board size such as
+     * 8x7 or 8x7x5 (defaults to 7x6x4)
+     */
+    public static void main(String[] args) {
+        long games = 1000000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = System.nanoTime();
+        Geometry geometry = Geometry.STANDARD;
+        try {
+            if (args.length > 0) games = Long.parseLong(args[0]);
+            if (args.length > 1) threads = Integer.parseInt(args[1]);
+            if (args.length > 2) seed = Long.parseLong(args[2]);
+            if (args.length > 3) geometry = Geometry.parse(args[3]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: java connectfour.ConnectFour -simulate [games] [threads] [seed] [size]");
+            System.exit(1);
+        }
+        System.out.println("Simulating " + games + " random games on "
+                + threads + " threads (seed " + seed + ", " + geometry + " board)");
+        Simulator simulator = new Simulator(geometry, RandomStrategy::new,
+                RandomStrategy::new, threads);
+        simulator.run(games, seed).print();
+    }
+}
@@ -0,0 +1,16 @@
+package connectfour;
+
+/**
+ * A way of choosing moves in a ConnectFour game, used by the computer 
+ * players.<br>
+ * A strategy may keep state (a random number generator, a search table) so
+ * each thread should use its own instance.
+ */
+public interface Strategy {
+    /**
+     * Choose the next move for the player whose turn it is.
+     * @param game the game to move in, must not be over
+     * @return the column to play, 1 to the board width
+     */
+    int selectMove(ConnectFour game);
+}
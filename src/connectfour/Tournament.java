@@ -0,0 +1,578 @@
+package connectfour;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/**
+ * This class plays computer strategies against each other in a round robin
+ * or a Swiss tournament and rates them.<br>
+ * Each pairing plays a match of several games, split into batches that run
+ * in parallel on a work-stealing fork/join pool. The players take turns to
+ * move first, and each pair of games starts from the same few random moves
+ * with the colours swapped, so neither player gets the better openings and
+ * engines that always play the same move still play different games.<br>
+ * Every batch is written to the results file as one line as soon as it is
+ * finished, so a long run can be watched and a stopped run still has its
+ * results. The ratings are Elo, fitted to every game played, with a 95%
+ * confidence interval.
+ * @author Stephen Whitely P308730
+ */
+public class Tournament {
+    /** How the players are paired. */
+    public enum Format {
+        /** Every player plays every other player once. */
+        ROUND_ROBIN,
+        /** Each round pairs players with similar scores who haven't met. */
+        SWISS
+    }
+    // most games a task plays itself rather than splitting further
+    private static final int BATCH_SIZE = 16;
+    // Elo points per unit of log10 odds
+    private static final double ELO_SCALE = 400;
+    private final Geometry geometry;
+    private final List<Entrant> entrants;
+    private final Format format;
+    private final int rounds;
+    private final int games;
+    private final int openingMoves;
+    private final int threads;
+    private final long seed;
+    // wins[i][j] is the number of games i won against j, draws is the same
+    // both ways, guarded by this
+    private final long[][] wins;
+    private final long[][] draws;
+    // the byes each player has had in a Swiss tournament
+    private final int[] byes;
+    private Writer out;
+    /**
+     * A player in the tournament.
+     */
+    public static class Entrant {
+        private final String name;
+        private final Function<SplittableRandom, Strategy> strategy;
+        /**
+         * Constructor for an entrant.
+         * @param name the name shown in the results
+         * @param strategy creates the strategy for each batch of games, which
+         * is only used by one thread
+         */
+        public Entrant(String name, Function<SplittableRandom, Strategy> strategy) {
+            this.name = name;
+            this.strategy = strategy;
+        }
+        /**
+         * Get the name of the entrant.
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+    }
+    /**
+     * Constructor for a tournament.
+     * @param geometry the size of the board and the number in a row to win
+     * @param entrants the players, at least two
+     * @param format round robin or Swiss
+     * @param rounds the number of Swiss rounds, not used for a round robin
+     * @param games the number of games in each match, even so that both
+     * players move first equally often
+     * @param openingMoves the number of random moves each game starts with
+     * @param threads the number of threads to play on
+     * @param seed the seed for the random numbers
+     */
+    public Tournament(Geometry geometry, List<Entrant> entrants, Format format, int rounds,
+            int games, int openingMoves, int threads, long seed) {
+        if (entrants.size() < 2 || games < 1 || rounds < 1 || openingMoves < 0
+                || threads < 1) {
+            throw new IllegalArgumentException("Bad tournament settings");
+        }
+        this.geometry = geometry;
+        this.entrants = new ArrayList<>(entrants);
+        this.format = format;
+        this.rounds = (format == Format.ROUND_ROBIN) ? 1 : rounds;
+        this.games = games;
+        this.openingMoves = openingMoves;
+        this.threads = threads;
+        this.seed = seed;
+        int n = entrants.size();
+        this.wins = new long[n][n];
+        this.draws = new long[n][n];
+        this.byes = new int[n];
+    }
+    /**
+     * Play every round of the tournament.
+     * @param results where to write each batch of results as it finishes,
+     * or null for nowhere
+     * @throws IOException if the results can't be written
+     */
+    public void run(Writer results) throws IOException {
+        out = results;
+        header();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            SplittableRandom random = new SplittableRandom(seed);
+            for (int round = 1; round <= rounds; round++) {
+                List<Match> matches = new ArrayList<>();
+                for (int[] pair : (format == Format.ROUND_ROBIN) ? allPairs() : swissPairs(round)) {
+                    matches.add(new Match(round, pair[0], pair[1], 0, games, random.split()));
+                }
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        ForkJoinTask.invokeAll(matches);
+                    }
+                });
+                if (out != null) out.flush();
+            }
+            if (out != null) {
+                for (String line : standings()) {
+                    out.write("# " + line + "\n");
+                }
+                out.flush();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+    /**
+     * Get the points a player has scored, one for a win and a half for a
+     * draw.
+     * @param player the index of the entrant
+     * @return the points
+     */
+    public synchronized double getScore(int player) {
+        double score = 0;
+        for (int j = 0; j < entrants.size(); j++) {
+            score += wins[player][j] + draws[player][j] / 2.0;
+        }
+        return score;
+    }
+    /**
+     * Get the number of games a player has played.
+     * @param player the index of the entrant
+     * @return the number of games
+     */
+    public synchronized long getGames(int player) {
+        long played = 0;
+        for (int j = 0; j < entrants.size(); j++) {
+            played += wins[player][j] + wins[j][player] + draws[player][j];
+        }
+        return played;
+    }
+    /**
+     * Work out the Elo ratings that best fit every game played, averaging
+     * 0. Each player is also given one draw against an average player, so
+     * that one who won or lost every game still gets a finite rating.
+     * @return the rating of each entrant, then the half width of its 95%
+     * confidence interval, in rating[0] and rating[1]
+     */
+    public synchronized double[][] getRatings() {
+        int n = entrants.size();
+        double[] rating = new double[n];
+        double[] information = new double[n];
+        double c = Math.log(10) / ELO_SCALE;
+        for (int iteration = 0; iteration < 1000; iteration++) {
+            double change = 0;
+            for (int i = 0; i < n; i++) {
+                // the virtual draw against an average player
+                double p0 = expected(rating[i], 0);
+                double score = 0.5, expected = p0, variance = p0 * (1 - p0);
+                for (int j = 0; j < n; j++) {
+                    long played = wins[i][j] + wins[j][i] + draws[i][j];
+                    if (j == i || played == 0) continue;
+                    double p = expected(rating[i], rating[j]);
+                    score += wins[i][j] + draws[i][j] / 2.0;
+                    expected += played * p;
+                    variance += played * p * (1 - p);
+                }
+                // a Newton step on the log likelihood
+                double step = (score - expected) / (c * variance);
+                rating[i] += step;
+                information[i] = c * c * variance;
+                change = Math.max(change, Math.abs(step));
+            }
+            double mean = 0;
+            for (double r : rating) {
+                mean += r / n;
+            }
+            for (int i = 0; i < n; i++) {
+                rating[i] -= mean;
+            }
+            if (change < 1e-6) break;
+        }
+        double[] interval = new double[n];
+        for (int i = 0; i < n; i++) {
+            interval[i] = 1.96 / Math.sqrt(information[i]);
+        }
+        return new double[][] {rating, interval};
+    }
+    /**
+     * Get the standings as lines of text, best first.
+     * @return the lines
+     */
+    public List<String> standings() {
+        double[][] ratings = getRatings();
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < entrants.size(); i++) {
+            order.add(i);
+        }
+        order.sort((a, b) -> Double.compare(ratings[0][b], ratings[0][a]));
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%4s %-16s %8s %7s %6s %6s", "rank", "player", "games",
+                "score", "elo", "+/-"));
+        int rank = 1;
+        for (int i : order) {
+            long played = getGames(i);
+            lines.add(String.format("%4d %-16s %8d %6.1f%% %6.0f %6.0f", rank++,
+                    entrants.get(i).getName(), played,
+                    100 * getScore(i) / Math.max(1, played), ratings[0][i], ratings[1][i]));
+        }
+        return lines;
+    }
+    /**
+     * Print the standings to the console.
+     */
+    public void print() {
+        for (String line : standings()) {
+            System.out.println(line);
+        }
+    }
+    /**
+     * Private helper to give the expected score of one player against
+     * another.
+     * @param rating the player's rating
+     * @param opponent the opponent's rating
+     * @return the expected score from 0 to 1
+     */
+    private static double expected(double rating, double opponent) {
+        return 1 / (1 + Math.pow(10, (opponent - rating) / ELO_SCALE));
+    }
+    /**
+     * Private helper to pair every player with every other.
+     * @return the pairs of entrant indexes
+     */
+    private List<int[]> allPairs() {
+        List<int[]> pairs = new ArrayList<>();
+        for (int i = 0; i < entrants.size(); i++) {
+            for (int j = i + 1; j < entrants.size(); j++) {
+                pairs.add(new int[] {i, j});
+            }
+        }
+        return pairs;
+    }
+    /**
+     * Private helper to pair the players for a Swiss round. Going down the
+     * table, each player is paired with the next player down that it hasn't
+     * met, or the next player down if it has met them all. A player left
+     * over gets a bye, which scores as a won match but doesn't count for
+     * its rating.
+     * @param round the round number
+     * @return the pairs of entrant indexes
+     * @throws IOException if the bye can't be written to the results
+     */
+    private List<int[]> swissPairs(int round) throws IOException {
+        int n = entrants.size();
+        List<Integer> order = new ArrayList<>();
+        double[] score = new double[n];
+        for (int i = 0; i < n; i++) {
+            order.add(i);
+            score[i] = getScore(i) + byes[i] * games;
+        }
+        // best first, and the first rounds in entry order
+        Collections.sort(order, (a, b) -> Double.compare(score[b], score[a]));
+        boolean[] paired = new boolean[n];
+        List<int[]> pairs = new ArrayList<>();
+        for (int x = 0; x < n; x++) {
+            int i = order.get(x);
+            if (paired[i]) continue;
+            int partner = -1;
+            for (int y = x + 1; y < n; y++) {
+                int j = order.get(y);
+                if (paired[j]) continue;
+                if (partner < 0) partner = j;
+                if (!met(i, j)) {
+                    partner = j;
+                    break;
+                }
+            }
+            paired[i] = true;
+            if (partner < 0) {
+                byes[i]++;
+                if (out != null) out.write(round + " " + i + " bye\n");
+                continue;
+            }
+            paired[partner] = true;
+            pairs.add(new int[] {i, partner});
+        }
+        return pairs;
+    }
+    /**
+     * Private helper to check if two players have played each other.
+     * @param i one entrant
+     * @param j the other
+     * @return true if they have played
+     */
+    private synchronized boolean met(int i, int j) {
+        return wins[i][j] + wins[j][i] + draws[i][j] > 0;
+    }
+    /**
+     * Private helper to write the start of the results file: the settings
+     * and the players, then what each line of results means.
+     * @throws IOException if it can't be written
+     */
+    private void header() throws IOException {
+        if (out == null) return;
+        out.write("# " + format.name().toLowerCase().replace('_', ' ') + " on a " + geometry
+                + " board, " + games + " games a match, " + openingMoves
+                + " random opening moves, seed " + seed + "\n");
+        for (int i = 0; i < entrants.size(); i++) {
+            out.write("# player " + i + " " + entrants.get(i).getName() + "\n");
+        }
+        out.write("# round player player wins draws losses, for the first player\n");
+    }
+    /**
+     * Private helper to add a batch of games to the results and write it to
+     * the results file.
+     * @param round the round
+     * @param a the first player
+     * @param b the second player
+     * @param won games a won
+     * @param drawn games drawn
+     * @param lost games b won
+     */
+    private synchronized void record(int round, int a, int b, long won, long drawn, long lost) {
+        wins[a][b] += won;
+        wins[b][a] += lost;
+        draws[a][b] += drawn;
+        draws[b][a] += drawn;
+        if (out == null) return;
+        try {
+            out.write(round + " " + a + " " + b + " " + won + " " + drawn + " " + lost + "\n");
+        } catch (IOException e) {
+            // keep playing, the standings are still printed at the end
+            System.err.println("Can't write results: " + e);
+            out = null;
+        }
+    }
+    /**
+     * A fork/join task that plays a range of the games of a match,
+     * splitting the range in half until it is small enough to play on one
+     * thread.
+     */
+    private class Match extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int round, a, b;
+        private final int from, to;
+        private final SplittableRandom random;
+        /**
+         * Constructor for a range of games.
+         * @param round the round
+         * @param a the first player
+         * @param b the second player
+         * @param from the first game (inclusive)
+         * @param to the last game (exclusive)
+         * @param random the random number generator for these games only
+         */
+        Match(int round, int a, int b, int from, int to, SplittableRandom random) {
+            this.round = round;
+            this.a = a;
+            this.b = b;
+            this.from = from;
+            this.to = to;
+            this.random = random;
+        }
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                // split on an even game so each pair of openings stays together
+                int middle = ((from + to) >>> 1) & ~1;
+                invokeAll(new Match(round, a, b, from, middle, random.split()),
+                        new Match(round, a, b, middle, to, random.split()));
+                return;
+            }
+            Strategy[] players = {
+                entrants.get(a).strategy.apply(random.split()),
+                entrants.get(b).strategy.apply(random.split())
+            };
+            // wins for a, draws and wins for b
+            long[] outcomes = new long[3];
+            ConnectFour game = new ConnectFour(geometry, 0, null);
+            long opening = random.nextLong();
+            for (int i = from; i < to; i++) {
+                // a fresh generator from the pair's seed for each game, so
+                // both games of a pair get the same opening
+                if (i % 2 == 0) opening = random.nextLong();
+                SplittableRandom moves = new SplittableRandom(opening);
+                // a moves first in the even games
+                game.startNewGame(i % 2);
+                for (int m = 0; m < openingMoves && !game.isGameOver(); m++) {
+                    int legal = game.getPosition().legalMoves();
+                    int n = moves.nextInt(Integer.bitCount(legal));
+                    for (int k = 0; k < n; k++) {
+                        legal &= legal - 1;
+                    }
+                    game.playMove(game.getTurn(), Integer.numberOfTrailingZeros(legal) + 1);
+                }
+                while (!game.isGameOver()) {
+                    int turn = game.getTurn();
+                    game.playMove(turn, players[turn].selectMove(game));
+                }
+                int winner = game.getWinner();
+                outcomes[(winner == -2) ? 1 : (winner == 0) ? 0 : 2]++;
+            }
+            record(round, a, b, outcomes[0], outcomes[1], outcomes[2]);
+        }
+    }
+    /**
+     * Private helper to make an entrant from its name on the command line:
+     * "random", or "engine:N" for the engine thinking for N milliseconds a
+     * move.
+     * @param name the name
+     * @param geometry the size of the board
+     * @param database where engines keep the positions they solve, or null
+     * @param book the engines' solved openings, or null
+     * @return the entrant
+     */
+    private static Entrant entrant(String name, Geometry geometry, PositionDatabase database,
+            OpeningBook book) {
+        if (name.equals("random")) return new Entrant(name, RandomStrategy::new);
+        if (name.startsWith("engine:")) {
+            long time = Long.parseLong(name.substring(7));
+            if (time < 1) throw new IllegalArgumentException(name);
+            // the engines of one entrant share a table, which is safe as
+            // the table checks every entry it reads and needs no locking
+            TranspositionTable table = new TranspositionTable(20);
+            return new Entrant(name, random -> {
+                Engine engine = new Engine(geometry, time, table);
+                engine.setPositionDatabase(database);
+                engine.setOpeningBook(book);
+                return engine;
+            });
+        }
+        throw new IllegalArgumentException(name);
+    }
+    /**
+     * Run a tournament from the command line.
+     * @param args "-swiss rounds" for a Swiss tournament instead of a round
+     * robin, "-games N" for the games in each match (20 unless changed),
+     * "-opening N" for the random moves each game starts with (2 unless
+     * changed), "-threads N", "-seed N", "-size WxH[xN]", "-out file" to write
+     * the results to, "-db file" to keep the positions the engines solve in a
+     * database file, "-book file" to give the engines an opening book, then
+     * at least two players, each "random" or
+     * "engine:milliseconds"
+     */
+    public static void main(String[] args) {
+        Format format = Format.ROUND_ROBIN;
+        int rounds = 1;
+        int games = 20;
+        int openingMoves = 2;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = System.nanoTime();
+        Geometry geometry = Geometry.STANDARD;
+        String file = null;
+        String databaseFile = null;
+        String bookFile = null;
+        List<String> names = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-swiss") && i + 1 < args.length) {
+                    format = Format.SWISS;
+                    rounds = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-games") && i + 1 < args.length) {
+                    games = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-opening") && i + 1 < args.length) {
+                    openingMoves = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                    if (threads < 1) throw new IllegalArgumentException("-threads " + threads);
+                } else if (args[i].equals("-seed") && i + 1 < args.length) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-size") && i + 1 < args.length) {
+                    geometry = Geometry.parse(args[++i]);
+                } else if (args[i].equals("-out") && i + 1 < args.length) {
+                    file = args[++i];
+                } else if (args[i].equals("-db") && i + 1 < args.length) {
+                    databaseFile = args[++i];
+                } else if (args[i].equals("-book") && i + 1 < args.length) {
+                    bookFile = args[++i];
+                } else if (args[i].startsWith("-")) {
+                    throw new IllegalArgumentException(args[i]);
+                } else {
+                    names.add(args[i]);
+                }
+            }
+            if (names.size() < 2) throw new IllegalArgumentException("Too few players");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: java connectfour.ConnectFour -tournament [-swiss rounds]"
+                    + " [-games N] [-opening N] [-threads N] [-seed N] [-size WxH[xN]]"
+                    + " [-out file] [-db file] [-book file] player player... (random or engine:milliseconds)");
+            System.exit(1);
+        }
+        PositionDatabase database = null;
+        if (databaseFile != null) {
+            try {
+                database = PositionDatabase.open(Paths.get(databaseFile), geometry,
+                        PositionDatabase.DEFAULT_SLOTS);
+            } catch (IOException e) {
+                System.out.println(e);
+                System.exit(1);
+            }
+        }
+        OpeningBook book = null;
+        if (bookFile != null) {
+            try {
+                book = OpeningBook.open(Paths.get(bookFile));
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+            if (book.getGeometry() != geometry) {
+                System.out.println("The opening book is for a " + book.getGeometry() + " board");
+                System.exit(1);
+            }
+        }
+        List<Entrant> entrants = new ArrayList<>();
+        for (String name : names) {
+            try {
+                entrants.add(entrant(name, geometry, database, book));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown player " + name);
+                System.exit(1);
+            }
+        }
+        System.out.println("Playing a " + format.name().toLowerCase().replace('_', ' ')
+                + " of " + entrants.size() + " players, " + games + " games a match on "
+                + threads + " threads (seed " + seed + ", " + geometry + " board)");
+        Tournament tournament = new Tournament(geometry, entrants, format, rounds, games,
+                openingMoves, threads, seed);
+        long start = System.nanoTime();
+        try (Writer results = (file == null) ? null
+                : Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+            tournament.run(results);
+        } catch (IOException e) {
+            System.out.println(e);
+            System.exit(1);
+        }
+        System.out.printf("Finished in %.1f s%n", (System.nanoTime() - start) / 1e9);
+        tournament.print();
+        if (database != null) {
+            try {
+                database.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+}
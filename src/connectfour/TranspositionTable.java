@@ -0,0 +1,64 @@
+package connectfour;
+
+/**
+ * A fixed size table of search results keyed by a position hash.<br>
+ * Each slot holds a key and a data long. Entries are stored with the key
+ * XORed with the data so that a read can check that both halves came from
+ * the same write. This lets many threads read and write the table without
+ * any locking: a slot torn by two writers at once simply fails the check
+ * and is treated as empty. New entries always replace old ones.
+ */
+public class TranspositionTable {
+    private final long[] keys;
+    private final long[] data;
+    private final int indexMask;
+    /**
+     * Constructor for a table.
+     * @param log2Size the table holds 2 to the power of this many entries
+     */
+    public TranspositionTable(int log2Size) {
+        keys = new long[1 << log2Size];
+        data = new long[1 << log2Size];
+        indexMask = (1 << log2Size) - 1;
+    }
+    /**
+     * Private helper to pick the slot for a key.
+     * @param key the position hash
+     * @return the slot index
+     */
+    private int index(long key) {
+        return (int) (key ^ (key >>> 32)) & indexMask;
+    }
+    /**
+     * Store an entry, replacing whatever was in its slot.
+     * @param key the position hash
+     * @param value the entry, which must not be 0
+     */
+    public void put(long key, long value) {
+        int i = index(key);
+        data[i] = value;
+        keys[i] = key ^ value;
+    }
+    /**
+     * Look up an entry.
+     * @param key the position hash
+     * @return the entry, or 0 if the position is not in the table
+     */
+    public long get(long key) {
+        int i = index(key);
+        long value = data[i];
+        if ((keys[i] ^ value) == key) {
+            return value;
+        }
+        return 0;
+    }
+    /**
+     * Remove every entry from the table.
+     */
+    public void clear() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = 0;
+            data[i] = 0;
+        }
+    }
+}
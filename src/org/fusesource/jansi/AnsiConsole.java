@@ -141,6 +141,13 @@ public class AnsiConsole {
         // Just wrap it up so that when we get closed, we reset the
         // attributes.
         return new FilterOutputStream(stream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // pass whole buffers through, FilterOutputStream would
+                // otherwise write them a byte at a time
+                out.write(b, off, len);
+            }
+
             @Override
             public void close() throws IOException {
                 write(AnsiOutputStream.RESET_CODE);
@@ -201,6 +201,38 @@ public class AnsiOutputStream extends FilterOutputStream {
         }
     }
 
+    /**
+     * Writes a block of bytes. Runs of plain text are passed on to the
+     * underlying stream in one call, and only the bytes from an escape
+     * character on go through the escape sequence state machine in
+     * {@link #write(int)}, rather than every byte as
+     * {@link FilterOutputStream} would.
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (state != LOOKING_FOR_FIRST_ESC_CHAR) {
+                write(b[i++] & 0xFF);
+                continue;
+            }
+            int start = i;
+            while (i < end && b[i] != FIRST_ESC_CHAR) {
+                i++;
+            }
+            if (i > start) {
+                out.write(b, start, i - start);
+            }
+            if (i < end) {
+                write(b[i++] & 0xFF);
+            }
+        }
+    }
+
     /**
      * Resets all state to continue with regular parsing
      * @param skipBuffer if current buffer should be skipped or written to out
@@ -82,6 +82,15 @@ public class HtmlAnsiOutputStream extends AnsiOutputStream {
         }
     }
 
+    @Override
+    public void write(byte[] buf, int offset, int len) throws IOException {
+        // every byte has to go through write(int) to be escaped, so don't
+        // take the bulk path of AnsiOutputStream
+        for (int i = 0; i < len; i++) {
+            write(buf[offset + i]);
+        }
+    }
+
     public void writeLine(byte[] buf, int offset, int len) throws IOException {
         write(buf, offset, len);
         closeAttributes();
@@ -0,0 +1,122 @@
+package connectfour;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks {@link Engine#solve(long, long, int)} against a plain minimax of
+ * the whole game tree on boards small enough to search completely.
+ */
+public class EngineTest {
+    private static final Geometry[] GEOMETRIES = {
+        Geometry.of(4, 4, 3), Geometry.of(5, 4, 4), Geometry.of(4, 5, 3), Geometry.of(3, 5, 3),
+        Geometry.of(6, 3, 3), Geometry.of(4, 4, 2)
+    };
+
+    /**
+     * Private helper to score a position by trying every move to the end
+     * of the game, with the same scoring as the engine: a win is worth
+     * more the sooner it comes and a draw is 0.
+     * @param g the geometry
+     * @param current the tokens of the player to move
+     * @param mask all of the tokens on the board
+     * @param moves the number of tokens on the board
+     * @param seen the scores of positions already worked out
+     * @return the score for the player to move
+     */
+    private static int minimax(Geometry g, long current, long mask, int moves,
+            Map<Long, Integer> seen) {
+        if (moves == g.getCells()) return 0;
+        // every board here fits in 32 bits, so this key is exact
+        long key = mask << 32 | current;
+        Integer known = seen.get(key);
+        if (known != null) return known;
+        int best = Integer.MIN_VALUE;
+        for (long left = g.playableCells(mask); left != 0; left &= left - 1) {
+            long move = left & -left;
+            if (g.isWin(current | move)) {
+                best = (g.getCells() + 1 - moves) / 2;
+                break;
+            }
+            best = Math.max(best, -minimax(g, current ^ mask, mask | move, moves + 1, seen));
+        }
+        seen.put(key, best);
+        return best;
+    }
+
+    @Test
+    public void solveMatchesMinimaxFromEmptyBoard() {
+        for (Geometry g : GEOMETRIES) {
+            Engine engine = new Engine(g, 0, new TranspositionTable(16));
+            assertEquals(g.toString(), minimax(g, 0, 0, 0, new HashMap<>()),
+                    engine.solve(0, 0, 0));
+        }
+    }
+
+    @Test
+    public void solveMatchesMinimaxFromRandomPositions() {
+        Random random = new Random(5);
+        for (Geometry g : GEOMETRIES) {
+            Map<Long, Integer> seen = new HashMap<>();
+            Engine engine = new Engine(g, 0, new TranspositionTable(16));
+            for (int i = 0; i < 200; i++) {
+                Position board = new Position(g);
+                int plies = random.nextInt(g.getCells() - 1);
+                // stop short of a finished game, which the engine isn't given
+                for (int player = 0; board.getMoveCount() < plies; player = 1 - player) {
+                    int column;
+                    do {
+                        column = random.nextInt(g.getWidth());
+                    } while (!board.canPlay(column));
+                    board.play(player, column);
+                    if (board.hasWon(player)) break;
+                }
+                int turn = board.getMoveCount() % 2;
+                if (board.hasWon(1 - turn) || board.isFull()) continue;
+                long current = board.getBoard(turn);
+                long mask = current | board.getBoard(1 - turn);
+                assertEquals(g + " after " + board.getMoveCount() + " moves",
+                        minimax(g, current, mask, board.getMoveCount(), seen),
+                        engine.solve(current, mask, board.getMoveCount()));
+            }
+        }
+    }
+
+    @Test
+    public void bestMoveKeepsTheScore() {
+        Random random = new Random(6);
+        Geometry g = Geometry.of(5, 4, 4);
+        Map<Long, Integer> seen = new HashMap<>();
+        Engine engine = new Engine(g, 0, new TranspositionTable(16));
+        for (int i = 0; i < 100; i++) {
+            Position board = new Position(g);
+            int plies = random.nextInt(g.getCells() - 2);
+            for (int player = 0; board.getMoveCount() < plies; player = 1 - player) {
+                int column;
+                do {
+                    column = random.nextInt(g.getWidth());
+                } while (!board.canPlay(column));
+                board.play(player, column);
+                if (board.hasWon(player)) break;
+            }
+            int turn = board.getMoveCount() % 2;
+            if (board.hasWon(1 - turn) || board.isFull()) continue;
+            long current = board.getBoard(turn);
+            long mask = current | board.getBoard(1 - turn);
+            int moves = board.getMoveCount();
+            int score = minimax(g, current, mask, moves, seen);
+            // with no time limit the move found must be one that keeps the
+            // position's score
+            int column = engine.bestMove(board, turn, Duration.ZERO) - 1;
+            long move = g.playableCells(mask) & g.columnMask(column);
+            int after = g.isWin(current | move) ? (g.getCells() + 1 - moves) / 2
+                    : -minimax(g, current ^ mask, mask | move, moves + 1, seen);
+            assertEquals(g + " after " + moves + " moves", score, after);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package connectfour;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the bitboard win tests of {@link Geometry} and {@link Position}
+ * against a plain scan of the grid, on boards with and without a sentinel
+ * row and for connect lengths other than four.
+ */
+public class GeometryTest {
+    // 9x7 and 9x6 have no room for a sentinel row, 8x7 only just has
+    private static final Geometry[] GEOMETRIES = {
+        Geometry.STANDARD, Geometry.of(9, 7, 4), Geometry.of(9, 7, 5), Geometry.of(9, 6, 3),
+        Geometry.of(8, 7, 5), Geometry.of(6, 5, 3), Geometry.of(4, 4, 4), Geometry.of(3, 9, 6),
+        Geometry.of(5, 1, 2)
+    };
+    private static final int BOARDS = 2000;
+
+    /**
+     * Private helper to get the bit for a cell.
+     * @param g the geometry
+     * @param column the column
+     * @param row the row
+     * @return the cell's bit
+     */
+    private static long cell(Geometry g, int column, int row) {
+        return 1L << (g.columnStart(column) + row);
+    }
+
+    /**
+     * Private helper to check for a line through a cell by walking the grid
+     * out from it in each direction.
+     * @param g the geometry
+     * @param b the player's tokens
+     * @param column the column of the cell
+     * @param row the row of the cell
+     * @return true if the cell is in a line of connect of the player's tokens
+     */
+    private static boolean lineThrough(Geometry g, long b, int column, int row) {
+        int[][] steps = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+        for (int[] step : steps) {
+            int count = 1;
+            for (int sign = -1; sign <= 1; sign += 2) {
+                int c = column + sign * step[0];
+                int r = row + sign * step[1];
+                while (c >= 0 && c < g.getWidth() && r >= 0 && r < g.getHeight()
+                        && (b & cell(g, c, r)) != 0) {
+                    count++;
+                    c += sign * step[0];
+                    r += sign * step[1];
+                }
+            }
+            if (count >= g.getConnect()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Private helper to check a whole board for a line.
+     * @param g the geometry
+     * @param b the player's tokens
+     * @return true if there is a line of connect tokens anywhere
+     */
+    private static boolean hasLine(Geometry g, long b) {
+        for (int c = 0; c < g.getWidth(); c++) {
+            for (int r = 0; r < g.getHeight(); r++) {
+                if ((b & cell(g, c, r)) != 0 && lineThrough(g, b, c, r)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Private helper to pick a random set of the board's cells.
+     * @param g the geometry
+     * @param random the random numbers
+     * @param density the chance of each cell being picked
+     * @return the cells
+     */
+    private static long randomCells(Geometry g, Random random, double density) {
+        long b = 0;
+        for (int c = 0; c < g.getWidth(); c++) {
+            for (int r = 0; r < g.getHeight(); r++) {
+                if (random.nextDouble() < density) b |= cell(g, c, r);
+            }
+        }
+        return b;
+    }
+
+    @Test
+    public void parseReadsSizeAndConnect() {
+        assertEquals(Geometry.STANDARD, Geometry.parse("7x6"));
+        assertEquals(Geometry.of(8, 7, 5), Geometry.parse("8x7x5"));
+        assertEquals(Geometry.of(3, 3, 3), Geometry.parse("3x3", 3));
+        // a connect length in the string wins over the default
+        assertEquals(Geometry.of(8, 7, 5), Geometry.parse("8x7x5", 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsConnectLongerThanTheBoard() {
+        Geometry.parse("3x3");
+    }
+
+    @Test
+    public void isWinMatchesGridScan() {
+        Random random = new Random(1);
+        for (Geometry g : GEOMETRIES) {
+            for (int i = 0; i < BOARDS; i++) {
+                long b = randomCells(g, random, 0.2 + 0.4 * random.nextDouble());
+                assertEquals(g + " " + Long.toHexString(b), hasLine(g, b), g.isWin(b));
+            }
+        }
+    }
+
+    @Test
+    public void isWinIgnoresLinesWrappingColumns() {
+        for (Geometry g : GEOMETRIES) {
+            // the top of one column and the bottom of the next are next to
+            // each other in the long when there is no sentinel row
+            for (int c = 0; c + 1 < g.getWidth(); c++) {
+                long b = 0;
+                for (int r = 0; r < g.getHeight(); r++) {
+                    if (r >= g.getHeight() - g.getConnect() / 2) b |= cell(g, c, r);
+                    if (r < (g.getConnect() + 1) / 2) b |= cell(g, c + 1, r);
+                }
+                assertEquals(g + " column " + c, hasLine(g, b), g.isWin(b));
+            }
+        }
+    }
+
+    @Test
+    public void completesLineMatchesGridScan() {
+        Random random = new Random(2);
+        for (Geometry g : GEOMETRIES) {
+            for (int i = 0; i < BOARDS; i++) {
+                long b = randomCells(g, random, 0.5);
+                for (int c = 0; c < g.getWidth(); c++) {
+                    for (int r = 0; r < g.getHeight(); r++) {
+                        if ((b & cell(g, c, r)) == 0) continue;
+                        assertEquals(g + " " + Long.toHexString(b) + " at " + c + "," + r,
+                                lineThrough(g, b, c, r),
+                                g.completesLine(b, g.columnStart(c) + r));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void winningCellsMatchesGridScan() {
+        Random random = new Random(3);
+        for (Geometry g : GEOMETRIES) {
+            for (int i = 0; i < BOARDS; i++) {
+                // tokens rest on each other, so a column is filled from the
+                // bottom up to a random height
+                long mask = 0;
+                for (int c = 0; c < g.getWidth(); c++) {
+                    int height = random.nextInt(g.getHeight() + 1);
+                    mask |= g.columnMask(c) & (cell(g, c, height) - 1);
+                }
+                long b = mask & randomCells(g, random, 0.5);
+                long expected = 0;
+                for (int c = 0; c < g.getWidth(); c++) {
+                    for (int r = 0; r < g.getHeight(); r++) {
+                        long bit = cell(g, c, r);
+                        if ((mask & bit) == 0 && lineThrough(g, b | bit, c, r)) expected |= bit;
+                    }
+                }
+                assertEquals(g + " " + Long.toHexString(b) + " in " + Long.toHexString(mask),
+                        expected, g.winningCells(b, mask));
+            }
+        }
+    }
+
+    @Test
+    public void positionMatchesGridScanDuringGames() {
+        Random random = new Random(4);
+        for (Geometry g : GEOMETRIES) {
+            for (int i = 0; i < BOARDS / 10; i++) {
+                Position board = new Position(g);
+                // keep playing after a win, the tests only look at the tokens
+                for (int player = 0; !board.isFull(); player = 1 - player) {
+                    int column;
+                    do {
+                        column = random.nextInt(g.getWidth());
+                    } while (!board.canPlay(column));
+                    board.play(player, column);
+                    long b = board.getBoard(player);
+                    int row = board.getHeight(column) - 1;
+                    assertEquals(g + " move " + board.getMoveCount(),
+                            lineThrough(g, b, column, row), board.completesLine(player, column));
+                    assertEquals(hasLine(g, b), board.hasWon(player));
+                    assertEquals(player, board.getCell(column, row));
+                }
+            }
+        }
+    }
+}